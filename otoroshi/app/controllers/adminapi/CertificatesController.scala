@@ -2,7 +2,10 @@ package otoroshi.controllers.adminapi
 
 import otoroshi.actions.ApiAction
 import akka.http.scaladsl.util.FastFuture
+import akka.stream.scaladsl.Source
+import akka.util.ByteString
 import otoroshi.env.Env
+import otoroshi.events.{AdminApiEvent, Audit}
 import otoroshi.utils.controllers.{
   ApiError,
   BulkControllerHelper,
@@ -14,11 +17,13 @@ import otoroshi.utils.controllers.{
   SeqEntityAndContext
 }
 import play.api.Logger
+import play.api.http.HttpEntity
 import play.api.libs.json._
 import play.api.mvc.{AbstractController, ControllerComponents, RequestHeader}
-import otoroshi.ssl.Cert
+import otoroshi.ssl.{Cert, CertificateProjectionFilter, CertificateProjectionIndex}
 
 import scala.concurrent.{ExecutionContext, Future}
+import scala.util.Try
 
 class CertificatesController(val ApiAction: ApiAction, val cc: ControllerComponents)(implicit val env: Env)
     extends AbstractController(cc)
@@ -43,6 +48,69 @@ class CertificatesController(val ApiAction: ApiAction, val cc: ControllerCompone
       }
     }
 
+  /**
+   * compact and paged listing of the certificates, served from the projections index so no certificate is parsed or
+   * serialized with its chain and private key. Supported query params are `domain` (prefix of the domain or of a
+   * SAN), `type` (comma separated), `expiresAfter`, `expiresBefore` (timestamps in ms), `expiresIn` (window in ms from
+   * now), `pageSize` and `cursor` (the `X-Next-Cursor` header of the previous page)
+   */
+  def projections() =
+    ApiAction.async { ctx =>
+      def long(name: String): Option[Long] = ctx.request.getQueryString(name).flatMap(v => Try(v.toLong).toOption)
+      val filter   = CertificateProjectionFilter(
+        domainPrefix = ctx.request.getQueryString("domain"),
+        expiresAfter = long("expiresAfter"),
+        expiresBefore = (long("expiresBefore").toSeq ++ long("expiresIn").map(_ + System.currentTimeMillis()).toSeq)
+          .reduceOption((a, b) => Math.min(a, b)),
+        types = ctx.request.getQueryString("type").toSeq.flatMap(_.split(",").map(_.trim).filter(_.nonEmpty))
+      )
+      val pageSize = ctx.request
+        .getQueryString("pageSize")
+        .flatMap(v => Try(v.toInt).toOption)
+        .getOrElse(CertificateProjectionIndex.defaultPageSize)
+      val page     = CertificateProjectionIndex.page(filter, ctx.request.getQueryString("cursor"), pageSize, p => ctx.canUserRead(p))
+      Audit.send(
+        AdminApiEvent(
+          env.snowflakeGenerator.nextIdStr(),
+          env.env,
+          Some(ctx.apiKey),
+          ctx.user,
+          "ACCESS_ALL_CERTIFICATES",
+          "User accessed certificates projections",
+          ctx.from,
+          ctx.ua,
+          Json.obj()
+        )
+      )
+      val headers  = Seq(
+        "X-Count"     -> page.items.size.toString,
+        "X-Page-Size" -> CertificateProjectionIndex.limit(pageSize).toString
+      ) ++ page.total.map(t => "X-Total-Count" -> t.toString).toSeq ++
+        page.nextCursor.map(c => "X-Next-Cursor" -> c).toSeq
+      val result   = if (!ctx.request.accepts("application/json") && ctx.request.accepts("application/x-ndjson")) {
+        Ok.sendEntity(
+          HttpEntity.Streamed(
+            Source(page.items.toList).map(p => ByteString(Json.stringify(p.json) + "\n")),
+            None,
+            Some("application/x-ndjson")
+          )
+        )
+      } else {
+        val items = Source(page.items.toList).zipWithIndex.map {
+          case (p, 0L) => ByteString(Json.stringify(p.json))
+          case (p, _)  => ByteString("," + Json.stringify(p.json))
+        }
+        Ok.sendEntity(
+          HttpEntity.Streamed(
+            Source.single(ByteString("[")).concat(items).concat(Source.single(ByteString("]"))),
+            None,
+            Some("application/json")
+          )
+        )
+      }
+      FastFuture.successful(result.withHeaders(headers: _*))
+    }
+
   override def extractId(entity: Cert): String = entity.id
 
   override def readEntity(json: JsValue): Either[JsValue, Cert] =
@@ -7,9 +7,10 @@ import otoroshi.actions.ApiAction
 import otoroshi.env.Env
 import otoroshi.models.RightsChecker
 import otoroshi.ssl.pki.models.GenCsrQuery
-import otoroshi.ssl.{Cert, CertificateData, P12Helper, PemCertificate}
+import otoroshi.ssl.{Cert, CertificateBulkImport, CertificateData, P12Helper, PemCertificate}
 import otoroshi.utils.future.Implicits._
 import play.api.Logger
+import play.api.http.HttpEntity
 import play.api.libs.json.{JsError, JsObject, JsSuccess, Json}
 import play.api.libs.streams.Accumulator
 import play.api.mvc._
@@ -246,6 +247,29 @@ class PkiController(ApiAction: ApiAction, cc: ControllerComponents)(implicit env
     }
   }
 
+  def bulkImport() = ApiAction.async(sourceBodyParser) { ctx =>
+    ctx.checkRights(RightsChecker.SuperAdminOnly) {
+      val format   = ctx.request.getQueryString("format").getOrElse("pem")
+      val password = ctx.request.getQueryString("password").getOrElse("")
+      val client   = ctx.request.getQueryString("client").flatMap(v => Try(v.toBoolean).toOption)
+      val entries  = format match {
+        case "p12" =>
+          ctx.request.body.runFold(ByteString.empty)(_ ++ _).map { body =>
+            Try(CertificateBulkImport.p12Entries(body, password, client.getOrElse(true)))
+          }
+        case _     => Try(CertificateBulkImport.pemEntries(ctx.request.body, client.getOrElse(false))).future
+      }
+      entries.map {
+        case Failure(e)       => BadRequest(Json.obj("error" -> s"Bad ${format} : $e"))
+        case Success(entries) =>
+          val progress = new CertificateBulkImport(env).stream(entries)
+          Ok.sendEntity(
+            HttpEntity.Streamed(progress.map(p => ByteString(Json.stringify(p.json) + "\n")), None, Some("application/x-ndjson"))
+          ).as("application/x-ndjson")
+      }
+    }
+  }
+
   def certificateData(): Action[Source[ByteString, _]] =
     ApiAction.async(sourceBodyParser) { ctx =>
       ctx.checkRights(RightsChecker.SuperAdminOnly) {
@@ -222,6 +222,27 @@ object AlgoSettings                                                           ex
       case k                       => key
     }
   }
+
+  /**
+   * algorithms built from static key material (HS, RS, ES) are kept by settings content, so decoding the keys and
+   * building the algorithm is done once instead of on every verified token. Algorithms are thread safe.
+   */
+  private val algorithms = Caches.bounded[AlgoSettings, Option[Algorithm]](1000)
+
+  def cachedAlgorithm(settings: AlgoSettings)(f: => Option[Algorithm]): Option[Algorithm] = {
+    algorithms.get(settings, _ => f)
+  }
+
+  def invalidateAlgorithms(verifier: JwtVerifier): Unit = {
+    algorithms.invalidate(verifier.algoSettings)
+    verifier.strategy match {
+      case Sign(_, algoSettings)         => algorithms.invalidate(algoSettings)
+      case Transform(_, _, algoSettings) => algorithms.invalidate(algoSettings)
+      case _                             => ()
+    }
+  }
+
+  def invalidateAllAlgorithms(): Unit = algorithms.invalidateAll()
 }
 object HSAlgoSettings                                                         extends FromJson[HSAlgoSettings] {
   override def fromJson(json: JsValue): Either[Throwable, HSAlgoSettings] =
@@ -244,6 +265,10 @@ case class HSAlgoSettings(size: Int, secret: String, base64: Boolean = false) ex
   def isAsync: Boolean = false
 
   override def asAlgorithm(mode: AlgoMode)(implicit env: Env): Option[Algorithm] = {
+    AlgoSettings.cachedAlgorithm(this)(buildAlgorithm)
+  }
+
+  private def buildAlgorithm(implicit env: Env): Option[Algorithm] = {
     size match {
       case 256 if base64 => Some(Algorithm.HMAC256(ApacheBase64.decodeBase64(transformValue(secret))))
       case 384 if base64 => Some(Algorithm.HMAC384(ApacheBase64.decodeBase64(transformValue(secret))))
@@ -310,6 +335,10 @@ case class RSAlgoSettings(size: Int, publicKey: String, privateKey: Option[Strin
   }
 
   override def asAlgorithm(mode: AlgoMode)(implicit env: Env): Option[Algorithm] = {
+    AlgoSettings.cachedAlgorithm(this)(buildAlgorithm)
+  }
+
+  private def buildAlgorithm(implicit env: Env): Option[Algorithm] = {
     size match {
       case 256 =>
         Some(
@@ -391,6 +420,10 @@ case class ESAlgoSettings(size: Int, publicKey: String, privateKey: Option[Strin
   }
 
   override def asAlgorithm(mode: AlgoMode)(implicit env: Env): Option[Algorithm] = {
+    AlgoSettings.cachedAlgorithm(this)(buildAlgorithm)
+  }
+
+  private def buildAlgorithm(implicit env: Env): Option[Algorithm] = {
     size match {
       case 256 =>
         Some(
@@ -2319,3 +2352,138 @@ trait GlobalJwtVerifierDataStore extends BasicStore[GlobalJwtVerifier] {
       }
   }
 }
+
+object AlgoSettings_Test {
+
+  import java.security.spec.{PKCS8EncodedKeySpec, X509EncodedKeySpec}
+  import java.security.{KeyFactory, KeyPairGenerator}
+
+  private def pem(kind: String, bytes: Array[Byte]): String =
+    s"-----BEGIN ${kind} KEY-----\n${ApacheBase64.encodeBase64String(bytes)}\n-----END ${kind} KEY-----"
+
+  private def decode(value: String, kind: String): Array[Byte] = ApacheBase64.decodeBase64(
+    value.replace(s"-----BEGIN ${kind} KEY-----\n", "").replace(s"\n-----END ${kind} KEY-----", "").trim()
+  )
+
+  // what every verification did before algorithms and keys were cached
+  private def uncached(family: String, publicKey: String, privateKey: String): Algorithm = {
+    val kf   = KeyFactory.getInstance(family)
+    val pub  = kf.generatePublic(new X509EncodedKeySpec(decode(publicKey, "PUBLIC")))
+    val priv = kf.generatePrivate(new PKCS8EncodedKeySpec(decode(privateKey, "PRIVATE")))
+    family match {
+      case "RSA" => Algorithm.RSA256(pub.asInstanceOf[RSAPublicKey], priv.asInstanceOf[RSAPrivateKey])
+      case _     => Algorithm.ECDSA256(pub.asInstanceOf[ECPublicKey], priv.asInstanceOf[ECPrivateKey])
+    }
+  }
+
+  private def cached(settings: AlgoSettings, family: String, publicKey: String, privateKey: String): Algorithm = {
+    AlgoSettings
+      .cachedAlgorithm(settings) {
+        val pub  = PemUtils.getPublicKey(decode(publicKey, "PUBLIC"), family)
+        val priv = PemUtils.getPrivateKey(decode(privateKey, "PRIVATE"), family)
+        family match {
+          case "RSA" => Algorithm.RSA256(pub.asInstanceOf[RSAPublicKey], priv.asInstanceOf[RSAPrivateKey]).some
+          case _     => Algorithm.ECDSA256(pub.asInstanceOf[ECPublicKey], priv.asInstanceOf[ECPrivateKey]).some
+        }
+      }
+      .get
+  }
+
+  def testInvalidation(): Unit = {
+    import java.util.concurrent.atomic.AtomicLong
+    val builds = new AtomicLong(0L)
+    def keys(): (String, String) = {
+      val kpg     = KeyPairGenerator.getInstance("EC")
+      kpg.initialize(256)
+      val keyPair = kpg.generateKeyPair()
+      (pem("PUBLIC", keyPair.getPublic.getEncoded), pem("PRIVATE", keyPair.getPrivate.getEncoded))
+    }
+    def algorithm(settings: ESAlgoSettings): Algorithm = {
+      AlgoSettings
+        .cachedAlgorithm(settings) {
+          builds.incrementAndGet()
+          Algorithm
+            .ECDSA256(
+              PemUtils.getPublicKey(decode(settings.publicKey, "PUBLIC"), "EC").asInstanceOf[ECPublicKey],
+              PemUtils.getPrivateKey(decode(settings.privateKey.get, "PRIVATE"), "EC").asInstanceOf[ECPrivateKey]
+            )
+            .some
+        }
+        .get
+    }
+    AlgoSettings.invalidateAllAlgorithms()
+
+    val (publicKey, privateKey) = keys()
+    val settings                = ESAlgoSettings(256, publicKey, privateKey.some)
+    val first                   = algorithm(settings)
+    assert(algorithm(settings) eq first, "the algorithm was built again for the same settings")
+    assert(algorithm(settings.copy()) eq first, "the algorithm was built again for equal settings")
+    assert(builds.get() == 1L)
+
+    // a changed key never reuses the algorithm of the previous one
+    val (otherPublicKey, otherPrivateKey) = keys()
+    val rotated                           = ESAlgoSettings(256, otherPublicKey, otherPrivateKey.some)
+    val second                            = algorithm(rotated)
+    assert(second ne first, "a changed key reused the previous algorithm")
+    assert(builds.get() == 2L)
+    val token = JWT.create().withIssuer("otoroshi-test").sign(first)
+    assert(Try(JWT.require(second).withIssuer("otoroshi-test").build().verify(token)).isFailure)
+    assert(Try(JWT.require(algorithm(settings)).withIssuer("otoroshi-test").build().verify(token)).isSuccess)
+
+    // an updated verifier evicts the algorithms of its previous settings
+    val verifier = GlobalJwtVerifier(
+      id = "jwt_verifier_cache_test",
+      name = "jwt_verifier_cache_test",
+      desc = "--",
+      algoSettings = settings,
+      strategy = Sign(VerificationSettings(Map.empty), rotated)
+    )
+    AlgoSettings.invalidateAlgorithms(verifier)
+    assert(algorithm(settings) ne first, "invalidateAlgorithms did not evict the algorithm of the verifier")
+    assert(algorithm(rotated) ne second, "invalidateAlgorithms did not evict the algorithm of the verifier strategy")
+    assert(builds.get() == 4L)
+
+    // the proxy state sync evicts the algorithms of the updated and removed verifiers only
+    val state = new otoroshi.next.proxy.NgProxyState(null)
+    state.updateJwtVerifiers(Seq(verifier))
+    val cachedBeforeSync = algorithm(settings)
+    state.updateJwtVerifiers(Seq(verifier))
+    assert(algorithm(settings) eq cachedBeforeSync, "an unchanged verifier was evicted during sync")
+    state.updateJwtVerifiers(Seq(verifier.copy(algoSettings = rotated, strategy = PassThrough(VerificationSettings(Map.empty)))))
+    assert(algorithm(settings) ne cachedBeforeSync, "an updated verifier was not evicted during sync")
+    val cachedRotated = algorithm(rotated)
+    state.updateJwtVerifiers(Seq.empty)
+    assert(algorithm(rotated) ne cachedRotated, "a removed verifier was not evicted during sync")
+    AlgoSettings.invalidateAllAlgorithms()
+  }
+
+  def testVerificationThroughput(iterations: Int = 20000): Unit = {
+    Seq(("RSA", 2048), ("EC", 256)).foreach { case (family, size) =>
+      val kpg        = KeyPairGenerator.getInstance(family)
+      kpg.initialize(size)
+      val keyPair    = kpg.generateKeyPair()
+      val publicKey  = pem("PUBLIC", keyPair.getPublic.getEncoded)
+      val privateKey = pem("PRIVATE", keyPair.getPrivate.getEncoded)
+      val settings   =
+        if (family == "RSA") RSAlgoSettings(256, publicKey, privateKey.some)
+        else ESAlgoSettings(256, publicKey, privateKey.some)
+      val token      = JWT.create().withIssuer("otoroshi-bench").sign(uncached(family, publicKey, privateKey))
+      Seq(false, true).foreach { useCache =>
+        AlgoSettings.invalidateAllAlgorithms()
+        PemUtils.invalidateKeys()
+        def verify(): Unit = {
+          val algorithm =
+            if (useCache) cached(settings, family, publicKey, privateKey) else uncached(family, publicKey, privateKey)
+          JWT.require(algorithm).withIssuer("otoroshi-bench").build().verify(token)
+        }
+        (0 until 2000).foreach(_ => verify())
+        val start   = System.nanoTime()
+        (0 until iterations).foreach(_ => verify())
+        val elapsed = Math.max(1L, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start))
+        println(
+          s"${family}${size} token verification ${if (useCache) "with" else "without"} algorithm cache: ${iterations} in ${elapsed} ms, ${(iterations * 1000L) / elapsed} verifications/s"
+        )
+      }
+    }
+  }
+}
@@ -3,6 +3,8 @@ package otoroshi.next.models
 import com.github.blemale.scaffeine.Scaffeine
 import otoroshi.env.Env
 import otoroshi.models.{ClientConfig, EntityLocation}
+import otoroshi.netty.NettyRequestKeys
+import otoroshi.ssl.SSLSessionJavaHelper
 import otoroshi.utils.cache.types.UnboundedTrieMap
 import otoroshi.utils.http.RequestImplicits.EnhancedRequestHeader
 import otoroshi.utils.syntax.implicits._
@@ -16,8 +18,10 @@ import play.api.mvc.{Headers, RequestHeader}
 import java.net.{InetAddress, URI}
 import java.security.cert.X509Certificate
 import java.util.concurrent.atomic.AtomicLong
+import javax.net.ssl.SSLSession
 import scala.collection.concurrent.TrieMap
 import scala.concurrent.duration._
+import scala.util.Try
 
 sealed trait RoutingStrategy {
   def json: JsValue
@@ -95,7 +99,23 @@ case class NgTreeRouter(
   )
 
   def findRoute(request: RequestHeader, attrs: TypedMap)(implicit env: Env): Option[NgMatchedRoute] = {
-    find(request.theDomain, request.thePath)
+    matchRoute(request, attrs, find(request.theDomain, request.thePath))
+  }
+
+  /**
+   * same as `findRoute` but with the domain part already resolved (from the routing hint of the tls session), so
+   * only the path is matched
+   */
+  def findRouteFromDomainNode(request: RequestHeader, attrs: TypedMap, node: Option[NgTreeDomainNode])(implicit
+      env: Env
+  ): Option[NgMatchedRoute] = {
+    matchRoute(request, attrs, node.flatMap(_.find(request.thePath)))
+  }
+
+  private def matchRoute(request: RequestHeader, attrs: TypedMap, matched: Option[NgMatchedRoutes])(implicit
+      env: Env
+  ): Option[NgMatchedRoute] = {
+    matched
       .flatMap { routes =>
         val routeIds = routes.routes.map(_.cacheableId)
         attrs.put(otoroshi.next.plugins.Keys.MatchedRoutesKey -> routeIds)
@@ -114,15 +134,18 @@ case class NgTreeRouter(
   }
 
   def find(domain: String, path: String): Option[NgMatchedRoutes] = {
+    resolveDomain(domain).flatMap(_.find(path))
+  }
+
+  def resolveDomain(domain: String): Option[NgTreeDomainNode] = {
     tree.get(domain) match {
-      case Some(ptree) =>
-        ptree.find(
-          path.split("/").filterNot(_.trim.isEmpty),
-          path.endsWith("/"),
-          "",
-          scala.collection.mutable.HashMap.empty
-        )
-      case None        => findWildcard(domain)
+      case Some(ptree) => NgTreeDomainNode(domain, ptree, None).some
+      case None        =>
+        wildcards
+          .find { route =>
+            RegexPool(route.domain).matches(domain)
+          }
+          .flatMap(route => tree.get(route.domain).map(ptree => NgTreeDomainNode(route.domain, ptree, route.path.some)))
     }
   }
 
@@ -135,6 +158,112 @@ case class NgTreeRouter(
   }
 }
 
+/**
+ * the node of the tree matching a domain. For wildcard domains, the path of the wildcard route is used for matching
+ * instead of the request path, like the full lookup does
+ */
+case class NgTreeDomainNode(domain: String, node: NgTreeNodePath, wildcardPath: Option[String]) {
+  def find(path: String): Option[NgMatchedRoutes] = {
+    val thePath = wildcardPath.getOrElse(path)
+    node.find(
+      thePath.split("/").filterNot(_.trim.isEmpty),
+      thePath.endsWith("/"),
+      "",
+      scala.collection.mutable.HashMap.empty
+    )
+  }
+}
+
+/**
+ * routing hint resolved during the tls handshake. The sni is fixed for the whole connection, so the domain part of
+ * the routing is done once and reused by every request of the connection as long as the host matches the sni and
+ * the routes did not change
+ */
+case class NgRoutingHint(sni: String, version: Long, node: Option[NgTreeDomainNode])
+
+sealed trait NgRoutingHintResolution
+object NgRoutingHintResolution {
+  // the domain node to use, with the hint to store back on the connection when the routes changed
+  case class Hinted(node: Option[NgTreeDomainNode], refreshed: Option[NgRoutingHint]) extends NgRoutingHintResolution
+  case object FullLookup                                                              extends NgRoutingHintResolution
+}
+
+object NgRoutingHints {
+
+  val SessionValueKey = "otoroshi.routing-hint"
+
+  private val hits      = new AtomicLong(0L)
+  private val fallbacks = new AtomicLong(0L)
+
+  // for servers that do not expose the tls session object, hints are retrieved from the tls session key
+  private val hints = Scaffeine()
+    .maximumSize(10000)
+    .expireAfterAccess(5.minutes)
+    .build[String, NgRoutingHint]()
+
+  def register(session: SSLSession, sessionKey: Option[String], hint: NgRoutingHint): Unit = {
+    Option(session).foreach(s => Try(s.putValue(SessionValueKey, hint)))
+    sessionKey.foreach(key => hints.put(key, hint))
+  }
+
+  private def sessionOf(request: RequestHeader): Option[SSLSession] =
+    request.attrs.get(NettyRequestKeys.TlsSessionKey).flatten
+
+  private def sessionKeyOf(request: RequestHeader): Option[String] =
+    request.headers.get("Tls-Session-Info").flatMap(SSLSessionJavaHelper.computeKey)
+
+  def fromRequest(request: RequestHeader): Option[NgRoutingHint] = {
+    sessionOf(request)
+      .flatMap(session => Option(session.getValue(SessionValueKey)))
+      .collect { case hint: NgRoutingHint => hint }
+      .orElse(sessionKeyOf(request).flatMap(key => hints.getIfPresent(key)))
+  }
+
+  // when the routes changed, the hint of a long lived connection is resolved again for the next requests
+  def refresh(request: RequestHeader, hint: NgRoutingHint): Unit = {
+    sessionOf(request) match {
+      case Some(session) => Try(session.putValue(SessionValueKey, hint))
+      case None          => sessionKeyOf(request).foreach(key => hints.put(key, hint))
+    }
+  }
+
+  def hit(): Unit      = hits.incrementAndGet()
+  def fallback(): Unit = fallbacks.incrementAndGet()
+
+  /**
+   * decides how a request is routed from the hint of its connection. A hint is used as is only if the host is the
+   * sni and the routes did not change since the handshake, a stale hint is resolved again with `rehint`, and a
+   * request for another host than the sni goes through the full lookup
+   */
+  def resolve(
+      hint: Option[NgRoutingHint],
+      host: String,
+      version: Long,
+      rehint: String => NgRoutingHint
+  ): NgRoutingHintResolution = {
+    hint match {
+      case Some(h) if h.version == version && h.sni == host =>
+        hit()
+        NgRoutingHintResolution.Hinted(h.node, None)
+      case Some(h) if h.sni == host                         =>
+        fallback()
+        val fresh = rehint(h.sni)
+        NgRoutingHintResolution.Hinted(fresh.node, Some(fresh))
+      case Some(_)                                          =>
+        fallback()
+        NgRoutingHintResolution.FullLookup
+      case None                                             =>
+        NgRoutingHintResolution.FullLookup
+    }
+  }
+
+  def stats(): JsValue = Json.obj(
+    "hints"     -> hints.estimatedSize(),
+    "hits"      -> hits.get(),
+    "fallbacks" -> fallbacks.get()
+  )
+}
+
 object NgTreeNodePath {
 
   val logger = Logger("otoroshi-next-tree-node-path")
@@ -549,6 +678,103 @@ object NgTreeRouter_Test {
     clear()
   }
 
+  def testRoutingHint(): Unit = {
+    val exactRoutes    = (0 until 10000).map(idx => NgFakeRoute.routeFromPath(s"tenant-${idx}.oto.tools/api/${idx}"))
+    val wildcardRoutes = (0 until 1000).map(idx => NgFakeRoute.routeFromPath(s"*-wildcard-${idx}.oto.tools/api"))
+    val router         = NgTreeRouter.build(exactRoutes ++ wildcardRoutes)
+
+    val counter = new AtomicLong(0L)
+    val sum     = new AtomicLong(0L)
+
+    def clear(): Unit = {
+      counter.set(0L)
+      sum.set(0L)
+    }
+
+    def printStats(iteration: String): Unit = {
+      val duration = sum.get().nanos.toMillis
+      val avg      = sum.get() / counter.get()
+      println(s"$iteration - duration: ${duration} ms, for ${counter.get()} iterations, avg iteration is: ${avg} nanos")
+    }
+
+    def measure(f: => Option[NgMatchedRoutes]): Boolean = {
+      val start_ns    = System.nanoTime()
+      val f_routes    = f
+      val duration_ns = System.nanoTime() - start_ns
+      counter.incrementAndGet()
+      sum.addAndGet(duration_ns)
+      f_routes.isDefined
+    }
+
+    Seq(
+      ("exact-domain", "tenant-4242.oto.tools", "/api/4242/foo"),
+      ("wildcard-domain", "foo-wildcard-999.oto.tools", "/api/foo")
+    ).foreach { case (name, domain, path) =>
+      // what the tls handshake does once per connection
+      val node = router.resolveDomain(domain)
+      assert(node.isDefined, s"no domain node for ${domain}")
+      assert(
+        node.flatMap(_.find(path)).map(_.routes.map(_.id)) == router.find(domain, path).map(_.routes.map(_.id)),
+        s"the routing hint and the full lookup did not match the same routes for ${domain}${path}"
+      )
+      assert(router.find(domain, path).isDefined, s"no route found for ${domain}${path}")
+      for (_ <- 1 to 20) {
+        for (_ <- 1 to 10000) {
+          measure(router.find(domain, path))
+          measure(node.flatMap(_.find(path)))
+        }
+        clear()
+      }
+      for (_ <- 1 to 100000) {
+        measure(router.find(domain, path))
+      }
+      printStats(s"${name}-full-lookup")
+      clear()
+      var found = true
+      for (_ <- 1 to 100000) {
+        found = measure(node.flatMap(_.find(path))) && found
+      }
+      printStats(s"${name}-routing-hint (found: ${found})")
+      clear()
+      assert(found, s"the routing hint did not find ${domain}${path}")
+    }
+
+    def routeIds(routes: Option[NgMatchedRoutes]): Option[Seq[String]] = routes.map(_.routes.map(_.id))
+
+    // the fallbacks of NgProxyState.findRoute
+    val hint = NgRoutingHint("tenant-42.oto.tools", 1L, router.resolveDomain("tenant-42.oto.tools"))
+    NgRoutingHints.resolve(Some(hint), "tenant-42.oto.tools", 1L, _ => sys.error("no rehint expected")) match {
+      case NgRoutingHintResolution.Hinted(node, None) =>
+        assert(routeIds(node.flatMap(_.find("/api/42"))) == routeIds(router.find("tenant-42.oto.tools", "/api/42")))
+      case other                                      => sys.error(s"expected the hint to be used, got ${other}")
+    }
+
+    // a host different from the sni goes through the full lookup, and never uses the domain node of the sni
+    NgRoutingHints.resolve(Some(hint), "tenant-43.oto.tools", 1L, _ => sys.error("no rehint expected")) match {
+      case NgRoutingHintResolution.FullLookup =>
+        assert(router.find("tenant-43.oto.tools", "/api/43").isDefined)
+        assert(routeIds(hint.node.flatMap(_.find("/api/43"))) != routeIds(router.find("tenant-43.oto.tools", "/api/43")))
+      case other                              => sys.error(s"expected a full lookup, got ${other}")
+    }
+    NgRoutingHints.resolve(None, "tenant-42.oto.tools", 1L, _ => sys.error("no rehint expected")) match {
+      case NgRoutingHintResolution.FullLookup =>
+      case other                              => sys.error(s"expected a full lookup without hint, got ${other}")
+    }
+
+    // once the routes changed, a hint from the previous version is resolved again against the new router
+    val newRoute  = NgFakeRoute.routeFromPath("tenant-42.oto.tools/api/v2")
+    val newRouter = NgTreeRouter.build(exactRoutes ++ wildcardRoutes :+ newRoute)
+    assert(hint.node.flatMap(_.find("/api/v2")).forall(!_.routes.exists(_.id == newRoute.id)))
+    NgRoutingHints.resolve(Some(hint), "tenant-42.oto.tools", 2L, sni => NgRoutingHint(sni, 2L, newRouter.resolveDomain(sni))) match {
+      case NgRoutingHintResolution.Hinted(node, Some(fresh)) =>
+        assert(fresh.version == 2L && fresh.sni == "tenant-42.oto.tools")
+        assert(routeIds(node.flatMap(_.find("/api/v2"))) == routeIds(newRouter.find("tenant-42.oto.tools", "/api/v2")))
+        assert(routeIds(node.flatMap(_.find("/api/v2"))).exists(_.contains(newRoute.id)))
+      case other                                             => sys.error(s"expected a refreshed hint, got ${other}")
+    }
+    println(NgRoutingHints.stats().prettify)
+  }
+
   def testWildcardDomainsRouter(): Unit = {
     val routes = Seq(NgFakeRoute.routeFromPath("*-wildcard-next-gen.oto.tools/api"))
     val router = NgTreeRouter.build(routes)
@@ -9,17 +9,18 @@ import otoroshi.next.plugins.api.NgPluginHelper.pluginId
 import otoroshi.next.plugins.api.{NgPluginCategory, NgPluginHelper}
 import otoroshi.next.plugins._
 import otoroshi.script._
-import otoroshi.ssl.{Cert, DynamicSSLEngineProvider}
+import otoroshi.ssl.{Cert, CertificateProjectionIndex, DynamicSSLEngineProvider}
 import otoroshi.tcp.TcpService
 import otoroshi.utils.TypedMap
 import otoroshi.utils.cache.types.UnboundedTrieMap
+import otoroshi.utils.http.RequestImplicits.EnhancedRequestHeader
 import otoroshi.utils.syntax.implicits._
 import play.api.Logger
 import play.api.libs.json._
 import play.api.mvc.RequestHeader
 
 import java.util.concurrent.TimeUnit
-import java.util.concurrent.atomic.{AtomicBoolean, AtomicReference}
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicLong, AtomicReference}
 import scala.collection.concurrent.TrieMap
 import scala.concurrent.duration.{DurationInt, DurationLong, FiniteDuration}
 import scala.concurrent.{ExecutionContext, Future}
@@ -64,6 +65,7 @@ class NgProxyState(env: Env) {
 
   private val routesByDomain    = new UnboundedTrieMap[String, Seq[NgRoute]]()
   private val domainPathTreeRef = new AtomicReference[NgTreeRouter](NgTreeRouter.empty)
+  private val routesVersion     = new AtomicLong(0L)
 
   def enableReportFor(id: String): Unit = {
     tryItEnabledReports.put(id, ())
@@ -96,8 +98,23 @@ class NgProxyState(env: Env) {
   def findRoutes(domain: String, path: String): Option[Seq[NgRoute]] =
     domainPathTreeRef.get().find(domain, path).map(_.routes)
 
-  def findRoute(request: RequestHeader, attrs: TypedMap): Option[NgMatchedRoute] =
-    domainPathTreeRef.get().findRoute(request, attrs)(env)
+  def findRoute(request: RequestHeader, attrs: TypedMap): Option[NgMatchedRoute] = {
+    val router = domainPathTreeRef.get()
+    NgRoutingHints.resolve(NgRoutingHints.fromRequest(request), request.theDomain(env), routesVersion.get(), routingHint) match {
+      case NgRoutingHintResolution.Hinted(node, refreshed) =>
+        refreshed.foreach(fresh => NgRoutingHints.refresh(request, fresh))
+        router.findRouteFromDomainNode(request, attrs, node)(env)
+      case NgRoutingHintResolution.FullLookup              =>
+        router.findRoute(request, attrs)(env)
+    }
+  }
+
+  def routingVersion(): Long = routesVersion.get()
+
+  def routingHint(sni: String): NgRoutingHint = {
+    val version = routesVersion.get()
+    NgRoutingHint(sni, version, domainPathTreeRef.get().resolveDomain(sni))
+  }
 
   def getDomainRoutes(domain: String): Option[Seq[NgRoute]] = routesByDomain.get(domain) match {
     case s @ Some(_) => s
@@ -165,6 +182,7 @@ class NgProxyState(env: Env) {
     routesByDomain.addAll(routesByDomainRaw).remAll(routesByDomain.keySet.toSeq.diff(routesByDomainRaw.keySet.toSeq))
     val s                                            = System.currentTimeMillis()
     domainPathTreeRef.set(NgTreeRouter.build(values))
+    routesVersion.incrementAndGet()
     val d                                            = System.currentTimeMillis() - s
     if (logger.isDebugEnabled) logger.debug(s"built TreeRouter(${values.size} routes) in ${d} ms.")
     // java.nio.file.Files.writeString(new java.io.File("./tree-router-config.json").toPath, domainPathTreeRef.get().json.prettify)
@@ -225,11 +243,21 @@ class NgProxyState(env: Env) {
   }
 
   def updateJwtVerifiers(values: Seq[GlobalJwtVerifier]): Unit = {
+    val updated = values.map(v => (v.id, v)).toMap
+    jwtVerifiers.values
+      .filterNot(old => updated.get(old.id).contains(old))
+      .foreach(old => AlgoSettings.invalidateAlgorithms(old))
     jwtVerifiers.addAll(values.map(v => (v.id, v))).remAll(jwtVerifiers.keySet.toSeq.diff(values.map(_.id)))
   }
 
   def updateCertificates(values: Seq[Cert]): Unit = {
     certificates.addAll(values.map(v => (v.id, v))).remAll(certificates.keySet.toSeq.diff(values.map(_.id)))
+    CertificateProjectionIndex.sync(values)
+  }
+
+  def addCertificates(values: Seq[Cert]): Unit = {
+    certificates.addAll(values.map(v => (v.id, v)))
+    CertificateProjectionIndex.add(values)
   }
 
   def updateAuthModules(values: Seq[AuthModuleConfig]): Unit = {
@@ -163,7 +163,7 @@ object KubernetesCertSyncJob {
                              cert.name.slugifyWithSlash,
                              "kubernetes.io/tls",
                              Json.obj(
-                               "tls.crt"      -> cert.chain.base64,
+                               "tls.crt"      -> cert.chain.pem.base64,
                                "tls.key"      -> cert.privateKey.base64,
                                "cert.crt"     -> cert.certificates.head.asPem.base64,
                                "ca-chain.crt" -> cert.certificates.tail.map(_.asPem).mkString("\n\n").base64,
@@ -178,7 +178,7 @@ object KubernetesCertSyncJob {
                              c.name,
                              "kubernetes.io/tls",
                              Json.obj(
-                               "tls.crt"      -> cert.chain.base64,
+                               "tls.crt"      -> cert.chain.pem.base64,
                                "tls.key"      -> cert.privateKey.base64,
                                "cert.crt"     -> cert.certificates.head.asPem.base64,
                                "ca-chain.crt" -> cert.certificates.tail.map(_.asPem).mkString("\n\n").base64,
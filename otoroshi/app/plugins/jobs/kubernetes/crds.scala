@@ -19,7 +19,7 @@ import otoroshi.plugins.jobs.kubernetes.IngressSupport.IntOrString
 import otoroshi.script._
 import otoroshi.security.IdGenerator
 import otoroshi.ssl.pki.models.GenCsrQuery
-import otoroshi.ssl.{Cert, DynamicSSLEngineProvider}
+import otoroshi.ssl.{Cert, CertificateChain, DynamicSSLEngineProvider}
 import otoroshi.tcp.TcpService
 import otoroshi.utils.http.DN
 import otoroshi.utils.syntax.implicits._
@@ -1859,7 +1859,7 @@ object KubernetesCRDsJob {
               name,
               "kubernetes.io/tls",
               Json.obj(
-                "tls.crt"      -> cert.chain.base64,
+                "tls.crt"      -> cert.chain.pem.base64,
                 "tls.key"      -> cert.privateKey.base64,
                 "cert.crt"     -> cert.certificates.head.asPem.base64,
                 "ca-chain.crt" -> cert.certificates.tail.map(_.asPem).mkString("\n\n").base64,
@@ -1873,14 +1873,14 @@ object KubernetesCRDsJob {
             val privateKey = (secret.raw \ "data" \ "tls.key").as[String].applyOn(s => s.fromBase64)
             //if ((chain != cert.chain) || (privateKey != cert.privateKey)) {
             updatedSecrets.updateAndGet(seq => seq :+ (namespace, name))
-            if (!(chain == cert.chain && privateKey == cert.privateKey)) {
+            if (!(CertificateChain(chain) == cert.chain && privateKey == cert.privateKey)) {
               logger.info(s"updating secret: $namespace/$name")
               clientSupport.client.updateSecret(
                 namespace,
                 name,
                 "kubernetes.io/tls",
                 Json.obj(
-                  "tls.crt"      -> cert.chain.base64,
+                  "tls.crt"      -> cert.chain.pem.base64,
                   "tls.key"      -> cert.privateKey.base64,
                   "cert.crt"     -> cert.certificates.head.asPem.base64,
                   "ca-chain.crt" -> cert.certificates.tail.map(_.asPem).mkString("\n\n").base64,
@@ -2614,7 +2614,7 @@ object KubernetesCRDsJob {
               val caBundle         = webhook.select("clientConfig").select("caBundle").asOpt[String].getOrElse("")
               val failurePolicy    = webhook.select("failurePolicy").asOpt[String].getOrElse("Ignore")
               val base64ca: String =
-                ca.chain.base64 // Base64.getEncoder.encodeToString(ca.certificates.head.getEncoded)
+                ca.chain.pem.base64 // Base64.getEncoder.encodeToString(ca.certificates.head.getEncoded)
               // println(s"caBundle: ${caBundle}, failurePolicy: $failurePolicy, base64: $base64ca, eq: ${caBundle == base64ca}")
               if (caBundle.trim.isEmpty || failurePolicy == "Ignore" || caBundle != base64ca) {
                 logger.info("updating otoroshi validating admission webhook ...")
@@ -2665,7 +2665,7 @@ object KubernetesCRDsJob {
               val caBundle         = webhook.select("clientConfig").select("caBundle").asOpt[String].getOrElse("")
               val failurePolicy    = webhook.select("failurePolicy").asOpt[String].getOrElse("Ignore")
               val base64ca: String =
-                ca.chain.base64 // Base64.getEncoder.encodeToString(ca.certificates.head.getEncoded)
+                ca.chain.pem.base64 // Base64.getEncoder.encodeToString(ca.certificates.head.getEncoded)
               if (caBundle.trim.isEmpty || failurePolicy == "Ignore" || caBundle != base64ca) {
                 logger.info("updating otoroshi mutating admission webhook ...")
                 client
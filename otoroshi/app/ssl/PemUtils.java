@@ -1,5 +1,7 @@
 package otoroshi.ssl;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import org.bouncycastle.util.io.pem.PemObject;
 import org.bouncycastle.util.io.pem.PemReader;
 import play.api.Logger;
@@ -16,11 +18,70 @@ import java.security.spec.EncodedKeySpec;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 public class PemUtils {
 
     private static Logger logger = Logger.apply("otoroshi-pem-utils");
 
+    // KeyFactory instances are not thread safe, so each thread keeps its own instance per algorithm
+    private static final ThreadLocal<Map<String, KeyFactory>> keyFactories = ThreadLocal.withInitial(HashMap::new);
+
+    private static final Cache<KeyMaterial, PublicKey> publicKeys = Caffeine.newBuilder()
+            .maximumSize(1000)
+            .build();
+
+    private static final Cache<KeyMaterial, PrivateKey> privateKeys = Caffeine.newBuilder()
+            .maximumSize(1000)
+            .build();
+
+    private static final class KeyMaterial {
+
+        private final String algorithm;
+        private final byte[] bytes;
+        private final int hash;
+
+        private KeyMaterial(String algorithm, byte[] bytes) {
+            this.algorithm = algorithm;
+            this.bytes = bytes;
+            this.hash = 31 * algorithm.hashCode() + Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof KeyMaterial)) return false;
+            KeyMaterial that = (KeyMaterial) o;
+            return hash == that.hash && algorithm.equals(that.algorithm) && Arrays.equals(bytes, that.bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    public static KeyFactory keyFactory(String algorithm) throws NoSuchAlgorithmException {
+        Map<String, KeyFactory> factories = keyFactories.get();
+        KeyFactory kf = factories.get(algorithm);
+        if (kf == null) {
+            kf = KeyFactory.getInstance(algorithm);
+            factories.put(algorithm, kf);
+        }
+        return kf;
+    }
+
+    public static void invalidateKeys() {
+        publicKeys.invalidateAll();
+        privateKeys.invalidateAll();
+    }
+
+    public static long cachedKeys() {
+        return publicKeys.estimatedSize() + privateKeys.estimatedSize();
+    }
+
     public static byte[] parsePEMFile(File pemFile) throws IOException {
         if (!pemFile.isFile() || !pemFile.exists()) {
             throw new FileNotFoundException(String.format("The file '%s' doesn't exist.", pemFile.getAbsolutePath()));
@@ -33,9 +94,14 @@ public class PemUtils {
     }
 
     public static PublicKey getPublicKey(byte[] keyBytes, String algorithm) {
+        // null results (invalid keys) are not cached
+        return publicKeys.get(new KeyMaterial(algorithm, keyBytes.clone()), k -> parsePublicKey(k.bytes, k.algorithm));
+    }
+
+    private static PublicKey parsePublicKey(byte[] keyBytes, String algorithm) {
         PublicKey publicKey = null;
         try {
-            KeyFactory kf = KeyFactory.getInstance(algorithm);
+            KeyFactory kf = keyFactory(algorithm);
             EncodedKeySpec keySpec = new X509EncodedKeySpec(keyBytes);
             publicKey = kf.generatePublic(keySpec);
         } catch (NoSuchAlgorithmException e) {
@@ -48,9 +114,13 @@ public class PemUtils {
     }
 
     public static PrivateKey getPrivateKey(byte[] keyBytes, String algorithm) {
+        return privateKeys.get(new KeyMaterial(algorithm, keyBytes.clone()), k -> parsePrivateKey(k.bytes, k.algorithm));
+    }
+
+    private static PrivateKey parsePrivateKey(byte[] keyBytes, String algorithm) {
         PrivateKey privateKey = null;
         try {
-            KeyFactory kf = KeyFactory.getInstance(algorithm);
+            KeyFactory kf = keyFactory(algorithm);
             EncodedKeySpec keySpec = new PKCS8EncodedKeySpec(keyBytes);
             privateKey = kf.generatePrivate(keySpec);
         } catch (NoSuchAlgorithmException e) {
@@ -0,0 +1,541 @@
+package otoroshi.ssl
+
+import akka.NotUsed
+import akka.stream.Materializer
+import akka.stream.scaladsl.{Framing, Sink, Source}
+import akka.util.ByteString
+import otoroshi.env.Env
+import otoroshi.utils.cache.types.UnboundedTrieMap
+import otoroshi.utils.syntax.implicits._
+import play.api.Logger
+import play.api.libs.json.{JsArray, JsObject, JsValue, Json}
+
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicLong, AtomicReference}
+import java.util.concurrent.{ConcurrentLinkedQueue, Executors}
+import scala.collection.JavaConverters._
+import scala.concurrent.{ExecutionContext, Future, Promise}
+import scala.util.{Failure, Success, Try}
+
+case class CertificateBulkImportConfig(parallelism: Int, batchSize: Int, maxErrors: Int)
+
+object CertificateBulkImportConfig {
+  def apply(env: Env): CertificateBulkImportConfig = {
+    val config = env.configuration
+    CertificateBulkImportConfig(
+      parallelism = config
+        .getOptional[Int]("otoroshi.ssl.bulk-import.parallelism")
+        .filter(_ > 0)
+        .getOrElse(Runtime.getRuntime.availableProcessors()),
+      batchSize = config.getOptional[Int]("otoroshi.ssl.bulk-import.batch-size").filter(_ > 0).getOrElse(100),
+      maxErrors = config.getOptional[Int]("otoroshi.ssl.bulk-import.max-errors").getOrElse(100)
+    )
+  }
+}
+
+/**
+ * one certificate to import. Parsing is deferred so it happens on the import workers and not while the source is
+ * read
+ */
+case class CertificateBulkImportEntry(index: Long, name: String, parse: () => Cert)
+
+case class CertificateBulkImportProgress(
+    parsed: Long,
+    imported: Long,
+    skipped: Long,
+    failed: Long,
+    elapsed: Long,
+    errors: Seq[JsObject] = Seq.empty,
+    done: Boolean = false
+) {
+  def throughput: Double = if (elapsed <= 0L) 0.0 else (parsed * 1000.0) / elapsed
+  def json: JsValue      = Json.obj(
+    "done"       -> done,
+    "parsed"     -> parsed,
+    "imported"   -> imported,
+    "skipped"    -> skipped,
+    "failed"     -> failed,
+    "elapsed"    -> elapsed,
+    "throughput" -> throughput
+  ) ++ (if (done) Json.obj("errors" -> JsArray(errors)) else Json.obj())
+}
+
+sealed trait CertificateBulkImportOutcome
+object CertificateBulkImportOutcome {
+  case class Valid(cert: Cert)                                         extends CertificateBulkImportOutcome
+  case class Duplicate(entry: CertificateBulkImportEntry)              extends CertificateBulkImportOutcome
+  case class Invalid(entry: CertificateBulkImportEntry, error: String) extends CertificateBulkImportOutcome
+}
+
+object CertificateBulkImport {
+
+  val logger = Logger("otoroshi-certificates-bulk-import")
+
+  /**
+   * the PKCS#12 container has to be decrypted as a whole, but its key entries are converted lazily so the costly
+   * part (key decryption, chain encoding and validation) runs in parallel
+   */
+  def p12Entries(file: ByteString, password: String = "", client: Boolean = true): Source[CertificateBulkImportEntry, NotUsed] = {
+    val keyStore = P12Helper.loadKeyStore(file, password)
+    Source
+      .fromIterator(() => P12Helper.keyAliases(keyStore).zipWithIndex)
+      .map { case (alias, idx) =>
+        CertificateBulkImportEntry(idx.toLong, alias, () => P12Helper.entryToCertificate(keyStore, alias, password, client))
+      }
+  }
+
+  /**
+   * splits a stream of concatenated PEM bundles in certificate entries without loading the whole text. Both orders
+   * are supported, private key followed by its chain or chain followed by its private key (fullchain then privkey):
+   * the order is detected once, by checking if the first private key matches the certificates read before it. A
+   * key-less chain (a CA chain for instance) has to be placed first when keys come first, and last when keys come
+   * last
+   */
+  def pemEntries(source: Source[ByteString, _], client: Boolean = false): Source[CertificateBulkImportEntry, NotUsed] = {
+    pemBlocks(source)
+      .map(Option.apply)
+      .concat(Source.single(None))
+      .statefulMapConcat[CertificateBulkImportEntry] { () =>
+        val current  = new StringBuilder()
+        var hasCert  = false
+        // None until the first private key is read, then Some(true) when keys follow their chain
+        var keysLast = Option.empty[Boolean]
+        var counter  = 0L
+        def flush(): List[CertificateBulkImportEntry] = {
+          if (current.isEmpty) {
+            Nil
+          } else {
+            val bundle = current.toString()
+            val idx    = counter
+            current.clear()
+            hasCert = false
+            counter = counter + 1
+            List(CertificateBulkImportEntry(idx, s"pem entry ${idx}", () => pemToCertificate(bundle, client)))
+          }
+        }
+        def append(block: PemBlock): Unit = {
+          current.append(block.content)
+          if (!block.key) hasCert = true
+        }
+        {
+          case None                                        =>
+            flush()
+          case Some(block) if !block.key                   =>
+            append(block)
+            Nil
+          case Some(block) if keysLast.isEmpty && !hasCert =>
+            keysLast = Some(false)
+            append(block)
+            Nil
+          case Some(block) if keysLast.isEmpty             =>
+            val matches = keyMatchesChain(current.toString(), block.content)
+            keysLast = Some(matches)
+            if (matches) {
+              append(block)
+              flush()
+            } else {
+              val entries = flush()
+              append(block)
+              entries
+            }
+          case Some(block) if keysLast.contains(true)      =>
+            append(block)
+            flush()
+          case Some(block)                                 =>
+            val entries = flush()
+            append(block)
+            entries
+        }
+      }
+      .mapMaterializedValue(_ => NotUsed)
+  }
+
+  private case class PemBlock(key: Boolean, content: String)
+
+  private def pemBlocks(source: Source[ByteString, _]): Source[PemBlock, NotUsed] = {
+    source
+      .via(Framing.delimiter(ByteString("\n"), maximumFrameLength = 64 * 1024, allowTruncation = true))
+      .map(_.utf8String.trim)
+      .statefulMapConcat[PemBlock] { () =>
+        val current = new StringBuilder()
+        var inBlock = false
+        var isKey   = false
+        {
+          case line if !inBlock && line.startsWith("-----BEGIN ") =>
+            inBlock = true
+            isKey = isPrivateKeyStart(line)
+            current.append(line).append("\n")
+            Nil
+          case line if inBlock && line.startsWith("-----END ")    =>
+            inBlock = false
+            current.append(line).append("\n")
+            val block = PemBlock(isKey, current.toString())
+            current.clear()
+            List(block)
+          case line if inBlock                                    =>
+            current.append(line).append("\n")
+            Nil
+          case _                                                  =>
+            Nil
+        }
+      }
+      .mapMaterializedValue(_ => NotUsed)
+  }
+
+  private def keyMatchesChain(chain: String, privateKey: String): Boolean = {
+    Try {
+      WatchedCertificates.keyMatchesCertificate(
+        Cert(
+          id = "pem-order",
+          name = "pem-order",
+          description = "pem-order",
+          chain = chain,
+          privateKey = privateKey,
+          caRef = None,
+          revoked = false
+        )
+      )
+    } getOrElse false
+  }
+
+  private def pemToCertificate(bundle: String, client: Boolean): Cert = {
+    val cert = PemCertificate.fromBundle(bundle).flatMap(_.toCert()).get
+    cert.copy(name = cert.domain, description = s"Certificate for ${cert.subject}", client = client)
+  }
+
+  private def fingerprint(cert: Cert): Option[(String, String)] = {
+    for {
+      signature    <- cert.signature
+      serialNumber <- cert.serialNumber
+    } yield (signature, serialNumber)
+  }
+}
+
+/**
+ * what the import needs from otoroshi: the datastore, the proxy state and the TLS registry
+ */
+trait CertificateBulkImportBackend {
+  def existing(): Future[Seq[Cert]]
+  def write(certs: Seq[Cert]): Future[Unit]
+  def markUpdated(): Future[Unit]
+  def rebuild(certs: Seq[Cert]): Unit
+  def report(progress: CertificateBulkImportProgress): Unit
+}
+
+class DatastoreCertificateBulkImportBackend(env: Env) extends CertificateBulkImportBackend {
+
+  private implicit val ec = env.otoroshiExecutionContext
+  private implicit val ev = env
+
+  def existing(): Future[Seq[Cert]] = env.datastores.certificatesDataStore.findAll()
+
+  def write(certs: Seq[Cert]): Future[Unit] = env.datastores.certificatesDataStore.setAll(certs).map(_ => ())
+
+  def markUpdated(): Future[Unit] = env.datastores.certificatesDataStore.markUpdated().map(_ => ())
+
+  def rebuild(certs: Seq[Cert]): Unit = {
+    env.proxyState.addCertificates(certs)
+    DynamicSSLEngineProvider.setCertificates(env)
+  }
+
+  def report(progress: CertificateBulkImportProgress): Unit = {
+    if (progress.done) {
+      env.metrics.counterIncOf("certs.bulk-import.imported", progress.imported)
+      env.metrics.counterIncOf("certs.bulk-import.failed", progress.failed)
+    } else {
+      env.metrics.markDouble("certs.bulk-import.throughput", progress.throughput)
+    }
+  }
+}
+
+/**
+ * Imports large amounts of certificates: entries are parsed and validated in parallel on a pool dedicated to the
+ * import, written to the datastore in batches, and the TLS registry is rebuilt only once at the end instead of after
+ * every `save()`. Progress events are emitted after every batch. The end of the import (the other nodes notified and
+ * the registry rebuilt with what was written) runs once whatever the way the stream terminates: completion, failure
+ * of the source or cancellation by the client.
+ */
+class CertificateBulkImport(_config: => CertificateBulkImportConfig, backend: CertificateBulkImportBackend)(implicit
+    ec: ExecutionContext,
+    mat: Materializer
+) {
+
+  import CertificateBulkImport._
+  import CertificateBulkImportOutcome._
+
+  def this(env: Env) =
+    this(CertificateBulkImportConfig(env), new DatastoreCertificateBulkImportBackend(env))(
+      env.otoroshiExecutionContext,
+      env.otoroshiMaterializer
+    )
+
+  lazy val config = _config
+
+  def run(entries: Source[CertificateBulkImportEntry, _]): Future[CertificateBulkImportProgress] = {
+    stream(entries).runWith(Sink.last)
+  }
+
+  def stream(entries: Source[CertificateBulkImportEntry, _]): Source[CertificateBulkImportProgress, NotUsed] = {
+    Source
+      .future(existingFingerprints())
+      .flatMapConcat { known =>
+        val pool      = Executors.newFixedThreadPool(config.parallelism)
+        val workers   = ExecutionContext.fromExecutorService(pool)
+        val start     = System.currentTimeMillis()
+        val parsed    = new AtomicLong(0L)
+        val imported  = new AtomicLong(0L)
+        val skipped   = new AtomicLong(0L)
+        val failed    = new AtomicLong(0L)
+        val errors    = new ConcurrentLinkedQueue[JsObject]()
+        val written   = new ConcurrentLinkedQueue[Cert]()
+        // the batch being written, the end of the import waits for it even if the stream already failed
+        val writing   = new AtomicReference[Future[Unit]](Future.successful(()))
+        val finalized = new AtomicBoolean(false)
+        val done      = Promise[CertificateBulkImportProgress]()
+        def progress(done: Boolean): CertificateBulkImportProgress = {
+          CertificateBulkImportProgress(
+            parsed = parsed.get(),
+            imported = imported.get(),
+            skipped = skipped.get(),
+            failed = failed.get(),
+            elapsed = System.currentTimeMillis() - start,
+            errors = if (done) errors.asScala.toSeq else Seq.empty,
+            done = done
+          )
+        }
+        def finish(error: Option[Throwable]): Future[CertificateBulkImportProgress] = {
+          if (finalized.compareAndSet(false, true)) {
+            pool.shutdown()
+            done.completeWith(writing.get().recover { case _ => () }.flatMap { _ =>
+              val certs   = written.asScala.toSeq
+              // nothing written, nothing for the other nodes to rebuild
+              val updated = if (certs.nonEmpty) backend.markUpdated() else ().vfuture
+              updated.map { _ =>
+                if (certs.nonEmpty) backend.rebuild(certs)
+                val p = progress(done = true)
+                backend.report(p)
+                error match {
+                  case None    =>
+                    logger.info(
+                      s"certificates bulk import done: ${p.imported} imported, ${p.skipped} skipped, ${p.failed} failed in ${p.elapsed} ms (${p.throughput.toInt} certs/s)"
+                    )
+                  case Some(e) =>
+                    logger.error(
+                      s"certificates bulk import failed after ${p.imported} imported, ${p.skipped} skipped, ${p.failed} failed in ${p.elapsed} ms",
+                      e
+                    )
+                }
+                p
+              }
+            })
+          }
+          done.future
+        }
+        entries
+          .mapAsyncUnordered(config.parallelism)(entry => Future(validate(entry, known))(workers))
+          .grouped(config.batchSize)
+          .mapAsync(1) { outcomes =>
+            parsed.addAndGet(outcomes.size.toLong)
+            outcomes.foreach {
+              case Duplicate(_)          => skipped.incrementAndGet()
+              case Invalid(entry, error) =>
+                failed.incrementAndGet()
+                if (failed.get() <= config.maxErrors) {
+                  errors.add(Json.obj("index" -> entry.index, "name" -> entry.name, "error" -> error))
+                }
+              case Valid(_)              => ()
+            }
+            val certs = outcomes.collect { case Valid(cert) => cert }
+            val write = backend.write(certs).map { _ =>
+              imported.addAndGet(certs.size.toLong)
+              certs.foreach(written.add)
+            }
+            writing.set(write)
+            write.map { _ =>
+              val p = progress(done = false)
+              backend.report(p)
+              if (logger.isDebugEnabled) logger.debug(s"certificates bulk import progress: ${p.json.stringify}")
+              p
+            }
+          }
+          .watchTermination() { (_, termination) =>
+            termination.onComplete(t => finish(t.failed.toOption))
+            NotUsed
+          }
+          // concat pulls its second source right away, the final progress is only computed once every batch passed
+          .map(Option.apply)
+          .concat(Source.single(None))
+          .mapAsync(1) {
+            case Some(p) => p.vfuture
+            case None    => finish(None)
+          }
+      }
+      .mapMaterializedValue(_ => NotUsed)
+  }
+
+  private def validate(
+      entry: CertificateBulkImportEntry,
+      known: UnboundedTrieMap[(String, String), Unit]
+  ): CertificateBulkImportOutcome = {
+    Try(entry.parse()) match {
+      case Failure(e)                                                    => Invalid(entry, s"unable to parse entry: ${e.getMessage}")
+      case Success(cert) if cert.certificate.isEmpty                     => Invalid(entry, "no valid certificate found")
+      case Success(cert) if cert.privateKey.trim.isEmpty && !cert.ca     => Invalid(entry, "no private key found")
+      case Success(cert) if cert.privateKey.trim.nonEmpty && !cert.valid =>
+        Invalid(entry, "private key does not match the certificate")
+      case Success(cert)                                                 =>
+        fingerprint(cert) match {
+          case Some(fp) if known.putIfAbsent(fp, ()).isDefined => Duplicate(entry)
+          case _                                               => Valid(cert)
+        }
+    }
+  }
+
+  private def existingFingerprints(): Future[UnboundedTrieMap[(String, String), Unit]] = {
+    backend.existing().map { certs =>
+      val known = new UnboundedTrieMap[(String, String), Unit]()
+      certs.flatMap(c => fingerprint(c)).foreach(fp => known.put(fp, ()))
+      known
+    }
+  }
+}
+
+object CertificateBulkImport_Test {
+
+  import SSLImplicits._
+  import akka.actor.ActorSystem
+
+  import java.security.KeyPair
+  import scala.concurrent.Await
+  import scala.concurrent.duration._
+
+  // keeps everything in memory, and tells when the end of the import ran and when a given number of batches were written
+  private class MemoryBackend(stored: Seq[Cert], batchesToWait: Int = Int.MaxValue) extends CertificateBulkImportBackend {
+    val batches  = new ConcurrentLinkedQueue[Seq[Cert]]()
+    val updates  = new AtomicLong(0L)
+    val rebuilds = new ConcurrentLinkedQueue[Seq[Cert]]()
+    val finished = Promise[CertificateBulkImportProgress]()
+    val written  = Promise[Unit]()
+    def existing(): Future[Seq[Cert]] = Future.successful(stored)
+    def write(certs: Seq[Cert]): Future[Unit] = {
+      batches.add(certs)
+      if (batches.size >= batchesToWait) written.trySuccess(())
+      Future.successful(())
+    }
+    def markUpdated(): Future[Unit] = {
+      updates.incrementAndGet()
+      Future.successful(())
+    }
+    def rebuild(certs: Seq[Cert]): Unit = rebuilds.add(certs)
+    def report(progress: CertificateBulkImportProgress): Unit = {
+      if (progress.done) finished.trySuccess(progress)
+    }
+  }
+
+  private def certificates(count: Int): Seq[Cert] = (0 until count).map { idx =>
+    val key = CertificateFixtures.keyPair()
+    val crt = CertificateFixtures.selfSigned(s"CN=bulk-${idx}.oto.tools", key)
+    CertificateFixtures.cert(s"bulk-${idx}", Seq(crt), key).enrich()
+  }
+
+  private def entries(certs: Seq[Cert]): Seq[CertificateBulkImportEntry] = certs.zipWithIndex.map {
+    case (cert, idx) => CertificateBulkImportEntry(idx.toLong, cert.id, () => cert)
+  }
+
+  def testBatching(): Unit = {
+    implicit val system = ActorSystem("certificates-bulk-import-batching-test")
+    implicit val mat    = Materializer(system)
+    implicit val ec     = system.dispatcher
+    try {
+      val certs   = certificates(250)
+      val broken  = CertificateBulkImportEntry(255L, "broken", () => throw new RuntimeException("broken entry"))
+      // the first 10 certificates are already in the datastore, 5 others are twice in the import
+      val backend = new MemoryBackend(certs.take(10))
+      val input   = entries(certs) ++ entries(certs.slice(100, 105)) :+ broken
+      val config  = CertificateBulkImportConfig(parallelism = 4, batchSize = 50, maxErrors = 100)
+      val bulk    = new CertificateBulkImport(config, backend)
+      val events  = Await.result(bulk.stream(Source(input.toList)).runWith(Sink.seq), 30.seconds)
+      val result  = events.last
+      assert(result.done && events.init.forall(!_.done), "the last progress event is not the only final one")
+      assert(result.parsed == 256L && result.imported == 240L, s"unexpected result: ${result.json.stringify}")
+      assert(result.skipped == 15L && result.failed == 1L, s"unexpected result: ${result.json.stringify}")
+      val batches = backend.batches.asScala.toSeq
+      assert(batches.size == 6 && events.size == 7, s"expected 6 batches, got ${batches.size}")
+      assert(batches.forall(_.size <= 50), "a batch is larger than the batch size")
+      val written = batches.flatten.map(_.id)
+      assert(written.size == 240 && written.distinct.size == 240, "a certificate was written twice")
+      assert(written.toSet == certs.drop(10).map(_.id).toSet, "an existing certificate was written again")
+      assert(backend.updates.get() == 1L, s"the certificates were marked updated ${backend.updates.get()} times")
+      assert(backend.rebuilds.size == 1, s"the registry was rebuilt ${backend.rebuilds.size} times")
+      assert(backend.rebuilds.asScala.head.map(_.id).toSet == written.toSet)
+    } finally {
+      system.terminate()
+    }
+  }
+
+  def testFailureMidStream(): Unit = {
+    implicit val system = ActorSystem("certificates-bulk-import-failure-test")
+    implicit val mat    = Materializer(system)
+    implicit val ec     = system.dispatcher
+    try {
+      val certs   = certificates(250)
+      val backend = new MemoryBackend(Seq.empty, batchesToWait = 2)
+      // the source fails (a client disconnecting while uploading for instance) once two batches were written
+      val failing = Source.future(backend.written.future.flatMap(_ => Future.failed(new RuntimeException("reset"))))
+      val input   = Source(entries(certs).toList).concat(failing)
+      val config  = CertificateBulkImportConfig(parallelism = 4, batchSize = 100, maxErrors = 100)
+      val result  = Try(Await.result(new CertificateBulkImport(config, backend).run(input), 30.seconds))
+      assert(result.isFailure, "the import did not fail with its source")
+      val done    = Await.result(backend.finished.future, 10.seconds)
+      Thread.sleep(500)
+      val written = backend.batches.asScala.toSeq.flatten
+      assert(written.size == 200 && done.imported == 200L, s"${written.size} certificates written")
+      assert(backend.updates.get() == 1L, s"the certificates were marked updated ${backend.updates.get()} times")
+      assert(backend.rebuilds.size == 1, s"the registry was rebuilt ${backend.rebuilds.size} times")
+      assert(backend.rebuilds.asScala.head.map(_.id) == written.map(_.id), "the written certificates were not all served")
+    } finally {
+      system.terminate()
+    }
+  }
+
+  private def sign(subject: String, keyPair: KeyPair, issuer: String, issuerKey: KeyPair, ca: Boolean): String =
+    CertificateFixtures.sign(subject, keyPair, issuer, issuerKey, ca).asPem
+
+  def testPemEntries(): Unit = {
+    implicit val system = ActorSystem("certificates-bulk-import-test")
+    implicit val mat    = Materializer(system)
+    try {
+      val caKey  = CertificateFixtures.keyPair()
+      val ca     = sign("CN=bulk-ca", caKey, "CN=bulk-ca", caKey, ca = true)
+      val leaves = (1 to 3).map { idx =>
+        val key    = CertificateFixtures.keyPair()
+        val domain = s"leaf-${idx}.oto.tools"
+        (domain, sign(s"CN=${domain}", key, "CN=bulk-ca", caKey, ca = false), key.getPrivate.asPem)
+      }
+      def entries(bundle: String): Seq[Cert] = {
+        Await
+          .result(CertificateBulkImport.pemEntries(Source.single(ByteString(bundle))).runWith(Sink.seq), 10.seconds)
+          .sortBy(_.index)
+          .map(_.parse())
+      }
+      def check(order: String, certs: Seq[Cert], caFirst: Boolean): Unit = {
+        assert(certs.size == leaves.size + 1, s"${order}: expected ${leaves.size + 1} entries, got ${certs.size}")
+        val (keyless, withKeys) = if (caFirst) (certs.head, certs.tail) else (certs.last, certs.init)
+        assert(keyless.privateKey.trim.isEmpty && keyless.ca, s"${order}: the key-less CA chain is not an entry")
+        withKeys.zip(leaves).foreach { case (cert, (domain, _, _)) =>
+          assert(cert.domain == domain, s"${order}: expected ${domain}, got ${cert.domain}")
+          assert(cert.privateKey.trim.nonEmpty, s"${order}: ${domain} has no private key")
+          assert(WatchedCertificates.keyMatchesCertificate(cert), s"${order}: ${domain} is not paired with its key")
+          assert(cert.certificates.size == 2, s"${order}: ${domain} chain is incomplete")
+        }
+      }
+      // key then chain, CA chain first
+      val keyFirst = (Seq(ca) ++ leaves.map { case (_, c, k) => s"${k}\n${c}\n${ca}" }).mkString("\n")
+      check("key first", entries(keyFirst), caFirst = true)
+      // chain then key (fullchain then privkey), CA chain last
+      val keyLast  = (leaves.map { case (_, c, k) => s"${c}\n${ca}\n${k}" } :+ ca).mkString("\n")
+      check("key last", entries(keyLast), caFirst = false)
+    } finally {
+      system.terminate()
+    }
+  }
+}
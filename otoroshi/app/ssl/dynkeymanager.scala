@@ -8,6 +8,7 @@ import otoroshi.env.Env
 
 import javax.net.ssl.{KeyManager, SSLEngine, SSLSession, X509ExtendedKeyManager, X509KeyManager}
 import otoroshi.models.{GlobalConfig, TlsSettings}
+import otoroshi.next.models.NgRoutingHints
 import otoroshi.utils.http.DN
 import otoroshi.utils.syntax.implicits._
 import play.api.Logger
@@ -182,7 +183,10 @@ class DynamicKeyManager(allCerts: () => Seq[Cert], client: Boolean, manager: X50
         certs.headOption
       }
     } else {
-      DynamicKeyManager.getServerCertificateForDomain(domain, validCerts, certsByDomains, env, logger)
+      // certificates watched on disk are reloaded in place, so they are looked up before the snapshot of this key manager
+      WatchedCertificates
+        .findForDomain(domain)
+        .orElse(DynamicKeyManager.getServerCertificateForDomain(domain, validCerts, certsByDomains, env, logger))
     }
     /*
       DynamicKeyManager.cache.getIfPresent(domain) match {
@@ -283,8 +287,8 @@ class DynamicKeyManager(allCerts: () => Seq[Cert], client: Boolean, manager: X50
     val latestConfig: Option[GlobalConfig] = env.datastores.globalConfigDataStore.latestSafe
     val defaultDomain: Option[String]      = latestConfig.flatMap(_.tlsSettings.defaultDomain)
     val handshakePeerHost: Option[String]  = Try(engine.getHandshakeSession.getPeerHost).toOption.filter(_ != null)
-    Option(engine.getPeerHost)
-      .orElse(handshakePeerHost)
+    val sni: Option[String]                = Option(engine.getPeerHost).orElse(handshakePeerHost)
+    sni
       .orElse(defaultDomain)
       .map { domain =>
         val autoCertEnabled        = latestConfig.exists(_.autoCert.enabled)
@@ -314,6 +318,9 @@ class DynamicKeyManager(allCerts: () => Seq[Cert], client: Boolean, manager: X50
             }
           case None                                                                      => ()
         }
+        if (sni.isDefined) {
+          Try(NgRoutingHints.register(engine.getHandshakeSession, sessionKey, env.proxyState.routingHint(domain)))
+        }
         domain
       }
       .getOrElse {
@@ -0,0 +1,75 @@
+package otoroshi.ssl
+
+import org.bouncycastle.asn1.x500.X500Name
+import org.bouncycastle.asn1.x509.{BasicConstraints, Extension}
+import org.bouncycastle.cert.jcajce.{JcaX509CertificateConverter, JcaX509v3CertificateBuilder}
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder
+
+import java.math.BigInteger
+import java.security.cert.X509Certificate
+import java.security.{KeyPair, KeyPairGenerator, SecureRandom}
+import java.util.Date
+import scala.concurrent.duration._
+
+/**
+ * Certificates generated for the `*_Test` objects. Unlike `FakeKeyStore`, it does not need an `Env` and uses EC keys,
+ * so generating thousands of certificates stays cheap.
+ */
+object CertificateFixtures {
+
+  import SSLImplicits._
+
+  private val random    = new SecureRandom()
+  private val converter = new JcaX509CertificateConverter()
+  private val generator = {
+    val kpg = KeyPairGenerator.getInstance("EC")
+    kpg.initialize(256, random)
+    kpg
+  }
+
+  def keyPair(): KeyPair = generator.synchronized(generator.generateKeyPair())
+
+  def sign(
+      subject: String,
+      keyPair: KeyPair,
+      issuer: String,
+      issuerKey: KeyPair,
+      ca: Boolean = false,
+      from: Long = System.currentTimeMillis() - 1.hour.toMillis,
+      to: Long = System.currentTimeMillis() + 90.days.toMillis,
+      serial: Option[BigInteger] = None
+  ): X509Certificate = {
+    val builder = new JcaX509v3CertificateBuilder(
+      new X500Name(issuer),
+      serial.getOrElse(new BigInteger(64, random)),
+      new Date(from),
+      new Date(to),
+      new X500Name(subject),
+      keyPair.getPublic
+    )
+    builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(ca))
+    converter.getCertificate(builder.build(new JcaContentSignerBuilder("SHA256withECDSA").build(issuerKey.getPrivate)))
+  }
+
+  def selfSigned(
+      subject: String,
+      keyPair: KeyPair,
+      ca: Boolean = false,
+      from: Long = System.currentTimeMillis() - 1.hour.toMillis,
+      to: Long = System.currentTimeMillis() + 90.days.toMillis
+  ): X509Certificate = sign(subject, keyPair, subject, keyPair, ca, from, to)
+
+  def cert(id: String, chain: Seq[X509Certificate], privateKey: String): Cert = {
+    Cert(
+      id = id,
+      name = id,
+      description = id,
+      chain = chain.map(_.asPem).mkString("\n"),
+      privateKey = privateKey,
+      caRef = None,
+      revoked = false
+    )
+  }
+
+  def cert(id: String, chain: Seq[X509Certificate], keyPair: KeyPair): Cert = cert(id, chain, keyPair.getPrivate.asPem)
+}
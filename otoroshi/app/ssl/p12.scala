@@ -7,32 +7,38 @@ import akka.util.ByteString
 import otoroshi.security.IdGenerator
 import otoroshi.ssl.SSLImplicits._
 
+import scala.collection.JavaConverters._
+
 object P12Helper {
 
-  def extractCertificate(file: ByteString, password: String = "", client: Boolean = true): Seq[Cert] = {
-    var certs    = Seq.empty[Cert]
+  def loadKeyStore(file: ByteString, password: String = ""): KeyStore = {
     val kspkcs12 = KeyStore.getInstance("pkcs12")
     kspkcs12.load(new ByteArrayInputStream(file.toArray), password.toCharArray)
-    val eAliases = kspkcs12.aliases()
-    while (eAliases.hasMoreElements) {
-      val strAlias = eAliases.nextElement()
-      if (kspkcs12.isKeyEntry(strAlias)) {
-        val key   = kspkcs12.getKey(strAlias, password.toCharArray)
-        val chain = kspkcs12.getCertificateChain(strAlias)
-        val cert  = Cert(
-          id = IdGenerator.token,
-          name = "Imported Certificate",
-          description = "Imported Certificate",
-          chain = chain.map(_.asPem).mkString("\n\n"),
-          privateKey = key.asPrivateKeyPem,
-          caRef = None,
-          client = client,
-          exposed = false,
-          revoked = false
-        ).enrich()
-        certs = certs :+ cert
-      }
-    }
-    certs
+    kspkcs12
+  }
+
+  def keyAliases(kspkcs12: KeyStore): Iterator[String] = {
+    kspkcs12.aliases().asScala.filter(alias => kspkcs12.isKeyEntry(alias))
+  }
+
+  def entryToCertificate(kspkcs12: KeyStore, alias: String, password: String = "", client: Boolean = true): Cert = {
+    val key   = kspkcs12.getKey(alias, password.toCharArray)
+    val chain = kspkcs12.getCertificateChain(alias)
+    Cert(
+      id = IdGenerator.token,
+      name = "Imported Certificate",
+      description = "Imported Certificate",
+      chain = chain.map(_.asPem).mkString("\n\n"),
+      privateKey = key.asPrivateKeyPem,
+      caRef = None,
+      client = client,
+      exposed = false,
+      revoked = false
+    ).enrich()
+  }
+
+  def extractCertificate(file: ByteString, password: String = "", client: Boolean = true): Seq[Cert] = {
+    val kspkcs12 = loadKeyStore(file, password)
+    keyAliases(kspkcs12).map(alias => entryToCertificate(kspkcs12, alias, password, client)).toList
   }
 }
@@ -0,0 +1,336 @@
+package otoroshi.ssl
+
+import otoroshi.models.{EntityLocation, EntityLocationSupport}
+import otoroshi.utils.cache.types.UnboundedTrieMap
+import play.api.libs.json.{JsValue, Json}
+
+import java.nio.charset.StandardCharsets
+import java.util.Base64
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.{ConcurrentHashMap, ConcurrentSkipListMap}
+import scala.collection.JavaConverters._
+import scala.util.Try
+
+/**
+ * what a certificate listing needs to display, without the PEM chain, the private key or the parsed metadata
+ */
+case class CertificateProjection(
+    id: String,
+    name: String,
+    description: String,
+    domain: String,
+    sans: Seq[String],
+    from: Long,
+    to: Long,
+    certType: String,
+    revoked: Boolean,
+    issuer: String,
+    tags: Seq[String],
+    location: EntityLocation
+) extends EntityLocationSupport {
+
+  def internalId: String               = id
+  def theName: String                  = name
+  def theDescription: String           = description
+  def theTags: Seq[String]             = tags
+  def theMetadata: Map[String, String] = Map.empty
+
+  def json: JsValue = Json.obj(
+    "id"      -> id,
+    "name"    -> name,
+    "domain"  -> domain,
+    "sans"    -> sans,
+    "from"    -> from,
+    "to"      -> to,
+    "type"    -> certType,
+    "revoked" -> revoked,
+    "issuer"  -> issuer,
+    "tags"    -> tags,
+    "_loc"    -> location.json
+  )
+
+  def matchesDomainPrefix(prefix: String): Boolean = {
+    domain.toLowerCase.startsWith(prefix) || sans.exists(_.toLowerCase.startsWith(prefix))
+  }
+}
+
+object CertificateProjection {
+
+  /**
+   * like `CertRenewalScheduler.validity`, a certificate saved without `enrich()` has no stored dates (both are `now`),
+   * nor stored domain and sans, they are read from the leaf certificate in that case
+   */
+  def apply(cert: Cert, issuer: String): CertificateProjection = {
+    val stored     = cert.to.getMillis - cert.from.getMillis > 1000L
+    val leaf       = if (stored) None else Try(cert.metadata).toOption.flatten
+    val (from, to) = CertRenewalScheduler.validity(cert).getOrElse((cert.from.getMillis, cert.to.getMillis))
+    CertificateProjection(
+      id = cert.id,
+      name = cert.name,
+      description = cert.description,
+      domain = leaf.flatMap(m => (m \ "domain").asOpt[String]).getOrElse(cert.domain),
+      sans = leaf.flatMap(m => (m \ "subAltNames").asOpt[Seq[String]]).getOrElse(cert.sans),
+      from = from,
+      to = to,
+      certType = cert.certType,
+      revoked = cert.revoked,
+      issuer = issuer,
+      tags = cert.tags,
+      location = cert.location
+    )
+  }
+}
+
+case class CertificateProjectionFilter(
+    domainPrefix: Option[String] = None,
+    expiresAfter: Option[Long] = None,
+    expiresBefore: Option[Long] = None,
+    types: Seq[String] = Seq.empty
+) {
+  private val prefix = domainPrefix.map(_.trim.toLowerCase).filter(_.nonEmpty)
+
+  def matches(p: CertificateProjection): Boolean = {
+    prefix.forall(p.matchesDomainPrefix) &&
+    expiresAfter.forall(p.to >= _) &&
+    expiresBefore.forall(p.to <= _) &&
+    (types.isEmpty || types.contains(p.certType))
+  }
+}
+
+/**
+ * `total` is the number of projections matching the filter that the caller can read, it is only computed for the
+ * first page as it needs to go through the whole index
+ */
+case class CertificateProjectionPage(items: Seq[CertificateProjection], nextCursor: Option[String], total: Option[Int])
+
+/**
+ * Index of the certificates projections, kept sorted by id in a skip list so a change never re-sorts the index. It
+ * is maintained from the proxy state and the datastore writes so listings never touch (or parse) the certificates
+ * themselves. The issuer is the only field that needs the parsed chain, it is kept per certificate and computed again
+ * only when the chain changes. The proxy state sync goes through every certificate every few seconds, a certificate
+ * with the same `hashCode` as the last time it was projected is skipped before anything is allocated. Pages are
+ * addressed by an opaque cursor (the last id of the previous page) so concurrent changes never shift the next pages.
+ */
+object CertificateProjectionIndex {
+
+  private val projections  = new ConcurrentSkipListMap[String, CertificateProjection]()
+  private val issuers      = new UnboundedTrieMap[String, (CertificateChain, String)]()
+  private val fingerprints = new ConcurrentHashMap[String, Integer]()
+  private val projected    = new AtomicLong(0L)
+
+  val defaultPageSize = 100
+  val maxPageSize     = 1000
+
+  def size: Int = projections.size
+
+  def limit(pageSize: Int): Int = Math.max(1, Math.min(pageSize, maxPageSize))
+
+  def stats(): JsValue = Json.obj(
+    "size"      -> projections.size,
+    "projected" -> projected.get()
+  )
+
+  private def issuerOf(cert: Cert): String = {
+    issuers.get(cert.id) match {
+      case Some((chain, issuer)) if (chain eq cert.chain) || chain == cert.chain => issuer
+      case _                                                                     =>
+        val issuer = Try(cert.certificate.map(_.getIssuerX500Principal.getName).getOrElse("--")).getOrElse("--")
+        issuers.put(cert.id, (cert.chain, issuer))
+        issuer
+    }
+  }
+
+  private def put(cert: Cert): Unit = {
+    val fingerprint = cert.hashCode()
+    val previous    = fingerprints.get(cert.id)
+    if (previous == null || previous.intValue() != fingerprint || !projections.containsKey(cert.id)) {
+      val projection = CertificateProjection(cert, issuerOf(cert))
+      projected.incrementAndGet()
+      if (projections.get(cert.id) != projection) {
+        projections.put(cert.id, projection)
+      }
+      fingerprints.put(cert.id, fingerprint)
+    }
+  }
+
+  def update(cert: Cert): Unit = put(cert)
+
+  def add(certs: Seq[Cert]): Unit = certs.foreach(put)
+
+  /**
+   * replaces the whole index content, only the certificates that changed are projected again
+   */
+  def sync(certs: Seq[Cert]): Unit = {
+    certs.foreach(put)
+    val ids     = certs.map(_.id).toSet
+    val removed = projections.keySet.asScala.filterNot(ids.contains).toList
+    if (removed.nonEmpty) removed.foreach(remove)
+  }
+
+  def remove(id: String): Unit = {
+    projections.remove(id)
+    issuers.remove(id)
+    fingerprints.remove(id)
+  }
+
+  def clear(): Unit = {
+    projections.clear()
+    issuers.clear()
+    fingerprints.clear()
+  }
+
+  def encodeCursor(id: String): String =
+    Base64.getUrlEncoder.withoutPadding().encodeToString(id.getBytes(StandardCharsets.UTF_8))
+
+  def decodeCursor(cursor: String): Option[String] =
+    Try(new String(Base64.getUrlDecoder.decode(cursor), StandardCharsets.UTF_8)).toOption
+
+  def page(
+      filter: CertificateProjectionFilter,
+      cursor: Option[String],
+      pageSize: Int,
+      canRead: CertificateProjection => Boolean = _ => true
+  ): CertificateProjectionPage = {
+    val limit = this.limit(pageSize)
+    // the projections with an id strictly greater than the last one of the previous page
+    val from  = cursor.flatMap(decodeCursor).map(id => projections.tailMap(id, false)).getOrElse(projections)
+    val it    = from.values().iterator()
+    val items = Vector.newBuilder[CertificateProjection]
+    var count = 0
+    while (it.hasNext && count < limit) {
+      val p = it.next()
+      if (filter.matches(p) && canRead(p)) {
+        items += p
+        count = count + 1
+      }
+    }
+    val page  = items.result()
+    // there is another page only if some projection after the last returned one may match
+    val next  = if (count == limit && it.hasNext) page.lastOption.map(p => encodeCursor(p.id)) else None
+    val total =
+      if (cursor.isEmpty) Some(projections.values().asScala.count(p => filter.matches(p) && canRead(p))) else None
+    CertificateProjectionPage(page, next, total)
+  }
+}
+
+object CertificateProjectionIndex_Test {
+
+  import org.joda.time.DateTime
+
+  def testPaging(count: Int = 100000): Unit = {
+    val now   = DateTime.now()
+    val certs = (0 until count).map { idx =>
+      Cert(
+        id = f"cert_${idx}%08d",
+        name = s"tenant-${idx}",
+        description = "--",
+        chain = "",
+        privateKey = "",
+        caRef = None,
+        domain = s"tenant-${idx}.oto.tools",
+        client = idx % 10 == 0,
+        revoked = false,
+        from = now.minusDays(1),
+        to = now.plusDays(idx % 90)
+      )
+    }
+    CertificateProjectionIndex.clear()
+    val syncStart = System.currentTimeMillis()
+    CertificateProjectionIndex.sync(certs)
+    val resync    = System.currentTimeMillis()
+    CertificateProjectionIndex.sync(certs)
+    val indexed   = System.currentTimeMillis()
+    assert(CertificateProjectionIndex.size == count)
+
+    val filter    = CertificateProjectionFilter(
+      expiresBefore = Some(now.plusDays(30).getMillis),
+      types = Seq("certificate")
+    )
+    val expected  = certs.count(c => !c.client && c.to.getMillis <= now.plusDays(30).getMillis)
+    val start     = System.currentTimeMillis()
+    var cursor    = Option.empty[String]
+    var seen      = Seq.empty[String]
+    var pages     = 0
+    do {
+      val page = CertificateProjectionIndex.page(filter, cursor, 1000)
+      seen = seen ++ page.items.map(_.id)
+      cursor = page.nextCursor
+      pages = pages + 1
+    } while (cursor.isDefined)
+    val elapsed   = System.currentTimeMillis() - start
+    assert(seen.size == expected, s"expected ${expected} projections, got ${seen.size}")
+    assert(seen.distinct.size == seen.size, "a projection was returned twice")
+    val byDomain  = CertificateProjectionIndex.page(CertificateProjectionFilter(domainPrefix = Some("tenant-4242.")), None, 10)
+    assert(byDomain.items.map(_.id) == Seq("cert_00004242"))
+    assert(byDomain.total.contains(1), s"the total must only count the filtered projections, got ${byDomain.total}")
+    // the total never counts the projections the caller cannot read
+    val readable  = CertificateProjectionIndex.page(filter, None, 10, p => p.name.endsWith("0"))
+    assert(readable.total.contains(certs.count(c => !c.client && c.name.endsWith("0") && c.to.getMillis <= now.plusDays(30).getMillis)))
+    assert(readable.items.forall(_.name.endsWith("0")))
+    assert(CertificateProjectionIndex.page(filter, readable.nextCursor, 10).total.isEmpty)
+    println(
+      s"${count} certificates - indexed in ${resync - syncStart} ms, re-synced in ${indexed - resync} ms, ${seen.size} projections read in ${pages} pages in ${elapsed} ms"
+    )
+
+    // a certificate added before the cursor while paging never shifts the next page
+    val first     = CertificateProjectionIndex.page(CertificateProjectionFilter(), None, 10)
+    CertificateProjectionIndex.update(certs.head.copy(id = "cert_0"))
+    val second    = CertificateProjectionIndex.page(CertificateProjectionFilter(), first.nextCursor, 10)
+    assert(second.items.map(_.id) == certs.slice(10, 20).map(_.id))
+    CertificateProjectionIndex.clear()
+  }
+
+  def testResync(count: Int = 10000): Unit = {
+    val now       = DateTime.now()
+    def read(): Seq[Cert] = (0 until count).map { idx =>
+      Cert(
+        id = f"cert_${idx}%08d",
+        name = s"tenant-${idx}",
+        description = "--",
+        chain = "",
+        privateKey = "",
+        caRef = None,
+        domain = s"tenant-${idx}.oto.tools",
+        revoked = false,
+        from = now.minusDays(1),
+        to = now.plusDays(idx % 90)
+      )
+    }
+    def projected(): Long = (CertificateProjectionIndex.stats() \ "projected").as[Long]
+    CertificateProjectionIndex.clear()
+    CertificateProjectionIndex.sync(read())
+    val before    = projected()
+    val first     = CertificateProjectionIndex.page(CertificateProjectionFilter(), None, 1).items.head
+    // the proxy state reads new instances of the same certificates on every sync
+    CertificateProjectionIndex.sync(read())
+    assert(projected() == before, s"${projected() - before} unchanged certificates were projected again")
+    assert(CertificateProjectionIndex.page(CertificateProjectionFilter(), None, 1).items.head eq first)
+    CertificateProjectionIndex.sync(read().map(c => if (c.id == first.id) c.copy(name = "renamed") else c))
+    assert(projected() == before + 1L, "a changed certificate was not projected again")
+    assert(CertificateProjectionIndex.page(CertificateProjectionFilter(), None, 1).items.head.name == "renamed")
+    CertificateProjectionIndex.remove(first.id)
+    CertificateProjectionIndex.sync(read())
+    assert(CertificateProjectionIndex.size == count, "a removed certificate was not projected again")
+    assert(CertificateProjectionIndex.limit(5000) == CertificateProjectionIndex.maxPageSize)
+    assert(CertificateProjectionIndex.limit(0) == 1)
+    CertificateProjectionIndex.clear()
+  }
+
+  def testLeafValidity(): Unit = {
+    val keyPair    = CertificateFixtures.keyPair()
+    val leaf       = CertificateFixtures.selfSigned("CN=unenriched.oto.tools", keyPair)
+    val now        = DateTime.now()
+    val unenriched = CertificateFixtures.cert("unenriched", Seq(leaf), keyPair).copy(from = now, to = now)
+    CertificateProjectionIndex.clear()
+    CertificateProjectionIndex.sync(Seq(unenriched))
+    val projection = CertificateProjectionIndex.page(CertificateProjectionFilter(), None, 10).items.head
+    assert(projection.from == leaf.getNotBefore.getTime, s"from not read from the leaf: ${projection.from}")
+    assert(projection.to == leaf.getNotAfter.getTime, s"to not read from the leaf: ${projection.to}")
+    assert(projection.domain == "unenriched.oto.tools", s"domain not read from the leaf: ${projection.domain}")
+    val expiring   = CertificateFixtures.cert("expiring", Seq(leaf), keyPair).enrich()
+    CertificateProjectionIndex.update(expiring.copy(to = now.plusDays(1)))
+    val filter     = CertificateProjectionFilter(expiresBefore = Some(now.plusDays(2).getMillis))
+    assert(CertificateProjectionIndex.page(filter, None, 10).items.map(_.id) == Seq("expiring"), "stored dates ignored")
+    CertificateProjectionIndex.clear()
+  }
+}
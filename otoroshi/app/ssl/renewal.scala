@@ -0,0 +1,445 @@
+package otoroshi.ssl
+
+import akka.actor.Cancellable
+import akka.stream.Materializer
+import akka.stream.scaladsl.{Sink, Source}
+import akka.util.ByteString
+import otoroshi.cluster.ClusterConfig
+import otoroshi.env.Env
+import otoroshi.events.{Alerts, CertExpiredAlert, CertRenewalAlert}
+import otoroshi.next.proxy.NgProxyStateLoaderJob
+import otoroshi.security.IdGenerator
+import otoroshi.utils.SchedulerHelper
+import otoroshi.utils.cache.types.UnboundedTrieMap
+import otoroshi.utils.syntax.implicits._
+import play.api.Logger
+
+import java.util.Comparator
+import java.util.concurrent.ConcurrentSkipListSet
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicLong, AtomicReference}
+import scala.concurrent.duration._
+import scala.concurrent.{ExecutionContext, Future}
+import scala.util.{Failure, Success, Try}
+
+case class CertRenewalSchedulerConfig(
+    tick: FiniteDuration,
+    maxSignaturesPerSecond: Double,
+    jitter: FiniteDuration,
+    leaseTtl: FiniteDuration,
+    resyncInterval: FiniteDuration
+) {
+  def permitsPerTick: Int = Math.max(1, (maxSignaturesPerSecond * tick.toMillis / 1000.0).toInt)
+}
+
+object CertRenewalSchedulerConfig {
+  def apply(env: Env): CertRenewalSchedulerConfig = {
+    val config = env.configuration
+    CertRenewalSchedulerConfig(
+      tick = config.getOptional[Long]("otoroshi.ssl.renewal.tick").getOrElse(10000L).millis,
+      maxSignaturesPerSecond =
+        config.getOptional[Double]("otoroshi.ssl.renewal.max-signatures-per-second").getOrElse(2.0),
+      jitter = config.getOptional[Long]("otoroshi.ssl.renewal.jitter").getOrElse(6.hours.toMillis).millis,
+      leaseTtl = config.getOptional[Long]("otoroshi.ssl.renewal.lease-ttl").getOrElse(5.minutes.toMillis).millis,
+      resyncInterval = config.getOptional[Long]("otoroshi.ssl.renewal.resync-interval").getOrElse(60000L).millis
+    )
+  }
+}
+
+case class CertRenewalSchedulerEntry(id: String, dueAt: Long)
+
+object CertRenewalScheduler {
+
+  val logger = Logger("otoroshi-certs-renewal-scheduler")
+
+  // a certificate is renewed when less than 20% of its lifetime remains
+  val renewalThresholdPercent = 20L
+
+  private val entryComparator: Comparator[CertRenewalSchedulerEntry] = (a, b) => {
+    val byDate = java.lang.Long.compare(a.dueAt, b.dueAt)
+    if (byDate != 0) byDate else a.id.compareTo(b.id)
+  }
+
+  /**
+   * delay before retrying a certificate whose processing failed, doubled on each consecutive failure
+   */
+  def retryDelay(failures: Int, tick: FiniteDuration, max: FiniteDuration = 1.hour): Long = {
+    val factor = 1L << Math.min(Math.max(failures - 1, 0), 20)
+    Math.min(tick.toMillis * factor, max.toMillis)
+  }
+
+  // CAs go first so leaf certificates due in the same batch are signed by the renewed CA
+  def caFirst(entries: Seq[CertRenewalSchedulerEntry], isCa: String => Boolean): Seq[CertRenewalSchedulerEntry] = {
+    val (cas, others) = entries.partition(e => isCa(e.id))
+    cas ++ others
+  }
+
+  def isUntilExpiration(cert: Cert): Boolean =
+    cert.entityMetadata.get("untilExpiration").contains("true") || cert.name.startsWith("[UNTIL EXPIRATION] ")
+
+  def isFlaggedExpired(cert: Cert): Boolean = cert.entityMetadata.get("expired").contains("true")
+
+  def isRenewable(cert: Cert): Boolean = cert.notRevoked && cert.autoRenew && !isUntilExpiration(cert)
+
+  def leafValidity(cert: Cert): Option[(Long, Long)] = {
+    Try(cert.certificate).toOption.flatten.map(c => (c.getNotBefore.getTime, c.getNotAfter.getTime))
+  }
+
+  /**
+   * the stored `from` and `to` are only set by `enrich()`, a certificate saved without it (or without those fields)
+   * gets `now` for both, so the dates are read from the leaf certificate in that case
+   */
+  def validity(cert: Cert): Option[(Long, Long)] = {
+    val from = cert.from.getMillis
+    val to   = cert.to.getMillis
+    if (to - from > 1000L) (from, to).some else leafValidity(cert)
+  }
+
+  def renewalDueAt(cert: Cert): Long = {
+    validity(cert).map { case (from, to) => renewalDueAt(from, to) }.getOrElse(Long.MaxValue)
+  }
+
+  def renewalDueAt(from: Long, to: Long): Long = to - (((to - from) * renewalThresholdPercent) / 100L)
+
+  /**
+   * spread renewals of certificates sharing the same validity period (like the ones signed right after a CA
+   * renewal) with a stable, per certificate offset, so every node computes the same due date
+   */
+  def jitterFor(cert: Cert, jitter: FiniteDuration): Long = {
+    validity(cert).map { case (from, to) => jitterFor(cert.id, from, to, jitter) }.getOrElse(0L)
+  }
+
+  def jitterFor(id: String, from: Long, to: Long, jitter: FiniteDuration): Long = {
+    val window = Math.min(jitter.toMillis, (to - from) / 20L)
+    if (window <= 0L) 0L else Math.floorMod(id.hashCode.toLong, window)
+  }
+
+  def renewalDue(cert: Cert, jitter: FiniteDuration, now: Long): Boolean = {
+    isRenewable(cert) && renewalDueAt(cert) - jitterFor(cert, jitter) <= now
+  }
+
+  def nextDueAt(cert: Cert, jitter: FiniteDuration, now: Long): Option[Long] = {
+    validity(cert).flatMap { case (from, to) =>
+      val expiry  = if (cert.revoked) {
+        None
+      } else if (isFlaggedExpired(cert)) {
+        if (now >= from && now < to) now.some else if (now < from) from.some else None
+      } else {
+        if (now < from || now >= to) now.some else to.some
+      }
+      val renewal =
+        if (isRenewable(cert)) (renewalDueAt(from, to) - jitterFor(cert.id, from, to, jitter)).some else None
+      (expiry.toSeq ++ renewal.toSeq).reduceOption((a, b) => Math.min(a, b))
+    }
+  }
+
+  // checked against the leaf when processing a single certificate, the stored dates are not trusted there
+  def expiredAt(cert: Cert, now: Long): Option[Boolean] = {
+    leafValidity(cert).orElse(validity(cert)).map { case (from, to) => now < from || now >= to }
+  }
+}
+
+/**
+ * Keeps certificates ordered by their next renewal or expiration date so the periodic job only looks at the
+ * head of the queue instead of loading and enriching every certificate. The queue is fed by datastore writes and
+ * reconciled with the proxy state, signatures are rate limited per tick and a cluster wide lease ensures only one
+ * node renews a given certificate.
+ */
+class CertRenewalScheduler(env: Env) {
+
+  import CertRenewalScheduler._
+
+  private val queue     = new ConcurrentSkipListSet[CertRenewalSchedulerEntry](entryComparator)
+  private val index     = new UnboundedTrieMap[String, CertRenewalSchedulerEntry]()
+  // id -> (consecutive failures, not before)
+  private val retries   = new UnboundedTrieMap[String, (Int, Long)]()
+  private val running   = new AtomicBoolean(false)
+  private val lastSync  = new AtomicLong(0L)
+  private val cancelRef = new AtomicReference[Cancellable](null)
+
+  lazy val config = CertRenewalSchedulerConfig(env)
+
+  def size: Int = index.size
+
+  def backlog(now: Long = System.currentTimeMillis()): Int =
+    queue.headSet(CertRenewalSchedulerEntry("", now + 1L)).size()
+
+  def track(cert: Cert): Unit = {
+    nextDueAt(cert, config.jitter, System.currentTimeMillis()) match {
+      case None        => untrack(cert.id)
+      case Some(dueAt) =>
+        val notBefore = retries.get(cert.id).map(_._2).getOrElse(0L)
+        schedule(CertRenewalSchedulerEntry(cert.id, Math.max(dueAt, notBefore)))
+    }
+  }
+
+  private def schedule(entry: CertRenewalSchedulerEntry): Unit = {
+    index.put(entry.id, entry) match {
+      case Some(old) if old == entry => ()
+      case Some(old)                 =>
+        queue.remove(old)
+        queue.add(entry)
+      case None                      => queue.add(entry)
+    }
+  }
+
+  def untrack(id: String): Unit = {
+    index.remove(id).foreach(queue.remove)
+    retries.remove(id)
+  }
+
+  private def retryLater(id: String, now: Long): Unit = {
+    val failures = retries.get(id).map(_._1).getOrElse(0) + 1
+    val at       = now + retryDelay(failures, config.tick)
+    retries.put(id, (failures, at))
+    schedule(CertRenewalSchedulerEntry(id, at))
+  }
+
+  def sync(certs: Seq[Cert]): Unit = {
+    certs.foreach(track)
+    val ids = certs.map(_.id).toSet
+    index.keySet.filterNot(ids.contains).foreach(untrack)
+  }
+
+  def start(): Unit = {
+    implicit val ec = env.otoroshiExecutionContext
+    cancelRef.set(
+      env.otoroshiActorSystem.scheduler.scheduleAtFixedRate(60.seconds, config.tick)(SchedulerHelper.runnable {
+        tick()
+      })
+    )
+  }
+
+  def stop(): Unit = {
+    Option(cancelRef.get()).foreach(_.cancel())
+  }
+
+  def tick(): Future[Unit] = {
+    implicit val ec  = env.otoroshiExecutionContext
+    implicit val mat = env.otoroshiMaterializer
+    implicit val ev  = env
+    if (running.compareAndSet(false, true)) {
+      val start = System.currentTimeMillis()
+      resyncIfNeeded(start).flatMap { _ =>
+        val due    = pollDue(start, config.permitsPerTick)
+        val signed = new AtomicLong(0L)
+        Source(due.toList)
+          .mapAsync(1)(entry => process(entry.id, signed))
+          .runWith(Sink.ignore)
+          .map { _ =>
+            val elapsed = Math.max(1L, System.currentTimeMillis() - start)
+            env.metrics.markLong("certs.renewal.scheduled", size.toLong)
+            env.metrics.markLong("certs.renewal.backlog", backlog().toLong)
+            env.metrics.markDouble("certs.renewal.signing-rate", signed.get() * 1000.0 / elapsed)
+          }
+      }.andThen {
+        case Failure(e) =>
+          logger.error("error while running certificates renewal", e)
+          running.set(false)
+        case Success(_) => running.set(false)
+      }
+    } else {
+      ().vfuture
+    }
+  }
+
+  private def resyncIfNeeded(now: Long)(implicit ec: ExecutionContext): Future[Unit] = {
+    if (now - lastSync.get() >= config.resyncInterval.toMillis) {
+      lastSync.set(now)
+      if (NgProxyStateLoaderJob.firstSync.get()) {
+        sync(env.proxyState.allCertificates()).vfuture
+      } else {
+        env.datastores.certificatesDataStore.findAll()(ec, env).map(sync)
+      }
+    } else {
+      ().vfuture
+    }
+  }
+
+  private def pollDue(now: Long, max: Int): Seq[CertRenewalSchedulerEntry] = {
+    val builder = Seq.newBuilder[CertRenewalSchedulerEntry]
+    var count   = 0
+    var next    = Option(queue.pollFirst())
+    while (next.isDefined) {
+      val entry = next.get
+      if (entry.dueAt > now) {
+        queue.add(entry)
+        next = None
+      } else {
+        if (index.get(entry.id).contains(entry)) {
+          index.remove(entry.id)
+          builder += entry
+          count = count + 1
+        }
+        next = if (count < max) Option(queue.pollFirst()) else None
+      }
+    }
+    caFirst(builder.result(), id => env.proxyState.certificate(id).exists(_.ca))
+  }
+
+  private def process(id: String, signed: AtomicLong)(implicit
+      ec: ExecutionContext,
+      env: Env,
+      mat: Materializer
+  ): Future[Unit] = {
+    val now = System.currentTimeMillis()
+    env.datastores.certificatesDataStore.findById(id).flatMap {
+      case None                                                                                            =>
+        ().vfuture
+      case Some(cert) if cert.notRevoked && !isFlaggedExpired(cert) && expiredAt(cert, now).contains(true) =>
+        val expired =
+          cert.copy(name = "[EXPIRED] " + cert.name, entityMetadata = cert.entityMetadata ++ Map("expired" -> "true"))
+        expired.save().map { _ =>
+          Alerts.send(CertExpiredAlert(env.snowflakeGenerator.nextIdStr(), env.env, expired))
+        }
+      case Some(cert) if isFlaggedExpired(cert) && expiredAt(cert, now).contains(false)                    =>
+        cert
+          .copy(name = cert.name.replace("[EXPIRED] ", ""), entityMetadata = cert.entityMetadata - "expired")
+          .save()
+          .map(_ => ())
+      case Some(cert) if renewalDue(cert, config.jitter, now)                                              =>
+        withLease(id) {
+          // another node may have renewed it between the first read and the lease, so it is read again
+          env.datastores.certificatesDataStore.findById(id).flatMap {
+            case Some(current) if renewalDue(current, config.jitter, System.currentTimeMillis()) =>
+              renew(current).map(_ => signed.incrementAndGet()).map(_ => ())
+            case Some(current)                                                                  =>
+              track(current).vfuture
+            case None                                                                           =>
+              ().vfuture
+          }
+        }
+      case Some(cert)                                                                                      =>
+        track(cert).vfuture
+    } map { _ =>
+      retries.remove(id)
+      ()
+    } recover { case e =>
+      env.metrics.counterInc("certs.renewal.errors")
+      logger.error(s"error while processing renewal of certificate '${id}'", e)
+      retryLater(id, now)
+    }
+  }
+
+  private def withLease(id: String)(f: => Future[Unit])(implicit ec: ExecutionContext, env: Env): Future[Unit] = {
+    val key = s"${env.storageRoot}:certs-renewal:lease:${id}"
+    env.datastores.rawDataStore
+      .setnx(key, ByteString(ClusterConfig.clusterNodeId), Some(config.leaseTtl.toMillis))
+      .flatMap {
+        case false =>
+          if (logger.isDebugEnabled) logger.debug(s"certificate '${id}' is already being renewed by another node")
+          ().vfuture
+        case true  =>
+          f.andThen { case _ =>
+            env.datastores.rawDataStore.del(Seq(key))
+          }
+      }
+  }
+
+  private def renew(cert: Cert)(implicit ec: ExecutionContext, env: Env, mat: Materializer): Future[Cert] = {
+    cert
+      .renew()
+      .flatMap { renewed =>
+        cert
+          .copy(
+            id = IdGenerator.token,
+            name = "[UNTIL EXPIRATION] " + cert.name,
+            entityMetadata = cert.entityMetadata ++ Map(
+              "untilExpiration" -> "true",
+              "nextCertificate" -> cert.id
+            )
+          )
+          .save()
+          .flatMap(_ => renewed.save())
+          .map(_ => renewed)
+      }
+      .map { renewed =>
+        env.metrics.counterInc("certs.renewal.signed")
+        Alerts.send(CertRenewalAlert(env.snowflakeGenerator.nextIdStr(), env.env, renewed))
+        renewed
+      }
+  }
+}
+
+object CertRenewalScheduler_Test {
+
+  import CertRenewalScheduler._
+  import org.joda.time.DateTime
+
+  private val day = 1.day.toMillis
+
+  private def cert(id: String, from: Long, to: Long, autoRenew: Boolean = true, ca: Boolean = false): Cert = {
+    Cert(
+      id = id,
+      name = id,
+      description = id,
+      chain = "",
+      privateKey = "",
+      caRef = None,
+      ca = ca,
+      revoked = false,
+      autoRenew = autoRenew,
+      from = new DateTime(from),
+      to = new DateTime(to)
+    )
+  }
+
+  // a certificate as read from a json without `from` and `to`, only the leaf knows the validity
+  private def unenriched(from: Long, to: Long): Cert = {
+    val keyPair = CertificateFixtures.keyPair()
+    val leaf    = CertificateFixtures.selfSigned("CN=renewal.oto.tools", keyPair, from = from, to = to)
+    val now     = DateTime.now()
+    CertificateFixtures
+      .cert("unenriched", Seq(leaf), keyPair)
+      .copy(autoRenew = true, from = now, to = now)
+  }
+
+  def testScheduling(): Unit = {
+    val now    = System.currentTimeMillis()
+    val jitter = 6.hours
+
+    // renewal is due when 20% of the lifetime remains, minus a stable jitter bounded by the lifetime
+    val valid  = cert("valid", now - 10 * day, now + 90 * day)
+    val offset = jitterFor(valid, jitter)
+    assert(offset >= 0L && offset < jitter.toMillis, s"jitter out of bounds: ${offset}")
+    assert(offset == jitterFor(valid.copy(name = "renamed"), jitter), "jitter must be stable")
+    assert(nextDueAt(valid, jitter, now).contains(renewalDueAt(now - 10 * day, now + 90 * day) - offset))
+    assert(jitterFor(cert("short", now, now + 10000L), jitter) < 500L, "jitter is bounded by 5% of the lifetime")
+
+    // without auto renewal, the next event is the expiration
+    assert(nextDueAt(valid.copy(autoRenew = false), jitter, now).contains(now + 90 * day))
+    assert(nextDueAt(valid.copy(revoked = true), jitter, now).isEmpty, "revoked certificates are not tracked")
+
+    // expired and not flagged yet: due now
+    val expired = cert("expired", now - 90 * day, now - day, autoRenew = false)
+    assert(nextDueAt(expired, jitter, now).contains(now))
+    assert(expiredAt(expired, now).contains(true))
+    // flagged expired and still expired: nothing to do anymore
+    val flagged = expired.copy(entityMetadata = Map("expired" -> "true"))
+    assert(nextDueAt(flagged, jitter, now).isEmpty)
+    // flagged expired but valid again (renewed outside of otoroshi): due now to remove the flag
+    val revived = cert("revived", now - day, now + 90 * day, autoRenew = false)
+      .copy(entityMetadata = Map("expired" -> "true"))
+    assert(nextDueAt(revived, jitter, now).contains(now))
+    assert(expiredAt(revived, now).contains(false))
+    // flagged expired and not valid yet: due when it becomes valid
+    val future  = cert("future", now + day, now + 90 * day, autoRenew = false)
+      .copy(entityMetadata = Map("expired" -> "true"))
+    assert(nextDueAt(future, jitter, now).contains(now + day))
+
+    // unenriched certificates use the validity of their leaf instead of being expired right away
+    val leaf = unenriched(now - day, now + 90 * day)
+    assert(validity(leaf).map(_._2 / 1000L).contains((now + 90 * day) / 1000L), s"bad validity: ${validity(leaf)}")
+    assert(expiredAt(leaf, now).contains(false))
+    assert(nextDueAt(leaf, jitter, now).exists(_ > now), "an unenriched valid certificate must not be due now")
+
+    // CAs are processed first, order is kept otherwise
+    val entries = Seq("leaf1", "ca1", "leaf2", "ca2").map(id => CertRenewalSchedulerEntry(id, now))
+    assert(caFirst(entries, _.startsWith("ca")).map(_.id) == Seq("ca1", "ca2", "leaf1", "leaf2"))
+
+    // retries back off exponentially up to one hour
+    assert(retryDelay(1, 10.seconds) == 10000L)
+    assert(retryDelay(2, 10.seconds) == 20000L)
+    assert(retryDelay(4, 10.seconds) == 80000L)
+    assert(retryDelay(100, 10.seconds) == 1.hour.toMillis)
+  }
+}
@@ -39,7 +39,7 @@ import org.bouncycastle.openssl.jcajce.{JcaPEMKeyConverter, JcePEMDecryptorProvi
 import org.bouncycastle.openssl.{PEMEncryptedKeyPair, PEMKeyPair, PEMParser}
 import org.bouncycastle.pkcs.PKCS10CertificationRequest
 import org.bouncycastle.util.io.pem.PemReader
-import org.joda.time.{DateTime, Interval}
+import org.joda.time.DateTime
 import otoroshi.ssl.pki.models.{GenCertResponse, GenCsrQuery, GenKeyPairQuery}
 import otoroshi.utils.letsencrypt.LetsEncryptHelper
 import otoroshi.utils.{RegexPool, TypedMap}
@@ -117,7 +117,7 @@ case class Cert(
     id: String,
     name: String,
     description: String,
-    chain: String,
+    chain: CertificateChain,
     privateKey: String,
     caRef: Option[String],
     domain: String = "--",
@@ -147,20 +147,7 @@ case class Cert(
   def theName: String                  = name
   def theTags: Seq[String]             = tags
 
-  lazy val cleanChain: String = {
-    val matcher: Matcher = DynamicSSLEngineProvider.CERT_PATTERN.matcher(chain)
-    var certificates     = Seq.empty[String]
-    var start            = 0
-    while ({ matcher.find(start) }) {
-      certificates = certificates :+ matcher.group(1)
-      start = matcher.end
-    }
-    certificates
-      .map(c => s"${PemHeaders.BeginCertificate}\n$c${PemHeaders.EndCertificate}")
-      .flatMap(_.split("\\n"))
-      .filterNot(_.trim.isEmpty)
-      .mkString("\n")
-  }
+  def cleanChain: String = CertificateStore.materialize(this).cleanChain
 
   lazy val certType = {
     if (client) "client"
@@ -173,7 +160,8 @@ case class Cert(
 
   lazy val notRevoked: Boolean                      = !revoked
   lazy val cacheKey: String                         = s"$id###$contentHash"
-  lazy val contentHash: String                      = Hashing.sha256().hashString(s"$chain:$privateKey", StandardCharsets.UTF_8).toString
+  lazy val contentHash: String                      =
+    Hashing.sha256().newHasher().putBytes(chain.bytes).putString(s":$privateKey", StandardCharsets.UTF_8).hash().toString
   lazy val bundle: String                           = s"${privateKey}\n\n${chain}\n"
   lazy val allDomains: Seq[String] = {
     val enriched = enrich()
@@ -202,70 +190,72 @@ case class Cert(
     this match {
       case original if original.letsEncrypt => LetsEncryptHelper.renew(this)
       case _                                => {
-        env.datastores.certificatesDataStore.findAll().map { certificates =>
-          val cas = certificates.filter(cert => cert.ca)
-          caRef.flatMap(ref => cas.find(_.id == ref)) match {
-            case None if ca         =>
-              val resp = FakeKeyStore
-                .createCA(subject, duration, Some(cryptoKeyPair), certificate.map(_.getSerialNumber.longValue()))
-              copy(chain = resp.cert.asPem, privateKey = resp.key.asPem).enrich()
-            case None if selfSigned =>
-              val resp = FakeKeyStore.createSelfSignedCertificate(
-                domain,
-                duration,
-                Some(cryptoKeyPair),
-                certificate.map(_.getSerialNumber.longValue())
-              )
-              copy(chain = resp.cert.asPem, privateKey = resp.key.asPem).enrich()
-            case None if keypair    =>
-              val resp = FakeKeyStore.createSelfSignedCertificate(
-                domain,
-                duration,
-                Some(cryptoKeyPair),
-                certificate.map(_.getSerialNumber.longValue())
-              )
-              copy(chain = resp.cert.asPem, privateKey = resp.key.asPem).enrich()
-            case None               => // should not happens
-              val resp = FakeKeyStore.createSelfSignedCertificate(
-                domain,
-                duration,
-                Some(cryptoKeyPair),
-                certificate.map(_.getSerialNumber.longValue())
-              )
-              copy(chain = resp.cert.asPem, privateKey = resp.key.asPem).enrich()
-            case Some(caCert) if ca =>
-              val resp = FakeKeyStore.createSubCa(
-                domain,
-                duration,
-                Some(cryptoKeyPair),
-                certificate.map(_.getSerialNumber.longValue()),
-                caCert.certificate.get,
-                caCert.certificates.tail,
-                caCert.cryptoKeyPair
-              )
-              copy(chain = resp.cert.asPem + "\n" + caCert.chain, privateKey = resp.key.asPem).enrich()
-            case Some(caCert)       =>
-              val resp = FakeKeyStore.createCertificateFromCA(
-                domain,
-                duration,
-                Some(cryptoKeyPair),
-                certificate.map(_.getSerialNumber.longValue()),
-                caCert.certificate.get,
-                caCert.certificates.tail,
-                caCert.cryptoKeyPair
-              )
-              copy(chain = resp.cert.asPem + "\n" + caCert.chain, privateKey = resp.key.asPem).enrich()
-            case _                  =>
-              // println("wait what ???")
-              val resp = FakeKeyStore.createSelfSignedCertificate(
-                domain,
-                duration,
-                Some(cryptoKeyPair),
-                certificate.map(_.getSerialNumber.longValue())
-              )
-              copy(chain = resp.cert.asPem, privateKey = resp.key.asPem).enrich()
+        caRef
+          .map(ref => env.datastores.certificatesDataStore.findById(ref))
+          .getOrElse(FastFuture.successful(None))
+          .map { caOpt =>
+            caOpt.filter(_.ca) match {
+              case None if ca         =>
+                val resp = FakeKeyStore
+                  .createCA(subject, duration, Some(cryptoKeyPair), certificate.map(_.getSerialNumber.longValue()))
+                copy(chain = resp.cert.asPem, privateKey = resp.key.asPem).enrich()
+              case None if selfSigned =>
+                val resp = FakeKeyStore.createSelfSignedCertificate(
+                  domain,
+                  duration,
+                  Some(cryptoKeyPair),
+                  certificate.map(_.getSerialNumber.longValue())
+                )
+                copy(chain = resp.cert.asPem, privateKey = resp.key.asPem).enrich()
+              case None if keypair    =>
+                val resp = FakeKeyStore.createSelfSignedCertificate(
+                  domain,
+                  duration,
+                  Some(cryptoKeyPair),
+                  certificate.map(_.getSerialNumber.longValue())
+                )
+                copy(chain = resp.cert.asPem, privateKey = resp.key.asPem).enrich()
+              case None               => // should not happens
+                val resp = FakeKeyStore.createSelfSignedCertificate(
+                  domain,
+                  duration,
+                  Some(cryptoKeyPair),
+                  certificate.map(_.getSerialNumber.longValue())
+                )
+                copy(chain = resp.cert.asPem, privateKey = resp.key.asPem).enrich()
+              case Some(caCert) if ca =>
+                val resp = FakeKeyStore.createSubCa(
+                  domain,
+                  duration,
+                  Some(cryptoKeyPair),
+                  certificate.map(_.getSerialNumber.longValue()),
+                  caCert.certificate.get,
+                  caCert.certificates.tail,
+                  caCert.cryptoKeyPair
+                )
+                copy(chain = resp.cert.asPem + "\n" + caCert.chain, privateKey = resp.key.asPem).enrich()
+              case Some(caCert)       =>
+                val resp = FakeKeyStore.createCertificateFromCA(
+                  domain,
+                  duration,
+                  Some(cryptoKeyPair),
+                  certificate.map(_.getSerialNumber.longValue()),
+                  caCert.certificate.get,
+                  caCert.certificates.tail,
+                  caCert.cryptoKeyPair
+                )
+                copy(chain = resp.cert.asPem + "\n" + caCert.chain, privateKey = resp.key.asPem).enrich()
+              case _                  =>
+                // println("wait what ???")
+                val resp = FakeKeyStore.createSelfSignedCertificate(
+                  domain,
+                  duration,
+                  Some(cryptoKeyPair),
+                  certificate.map(_.getSerialNumber.longValue())
+                )
+                copy(chain = resp.cert.asPem, privateKey = resp.key.asPem).enrich()
+            }
           }
-        }
       }
     }
   }
@@ -304,68 +294,12 @@ case class Cert(
       .map(_.replace(PemHeaders.EndCertificate, "").trim())
       .map(c => s"${PemHeaders.BeginCertificate}\n$c\n${PemHeaders.EndCertificate}")
   }.toOption.toSeq.flatten
-  lazy val certificates: Seq[X509Certificate]           = certificatesChain.toSeq /*{
-    val certificateFactory: CertificateFactory = CertificateFactory.getInstance("X.509")
-    certificatesRaw
-      .map(
-        content =>
-          Try(
-            certificateFactory
-              .generateCertificate(new ByteArrayInputStream(DynamicSSLEngineProvider.base64Decode(content)))
-              .asInstanceOf[X509Certificate]
-        )
-      )
-      .collect {
-        case Success(cert) => cert
-      }
-  }*/
-
-  lazy val certificatesChain: Array[X509Certificate] = { //certificates.toArray
-    Try {
-      cleanChain
-        .split(PemHeaders.BeginCertificate)
-        .toSeq
-        .map(_.trim)
-        .filterNot(_.isEmpty)
-        .map { content =>
-          content.replace(PemHeaders.BeginCertificate, "").replace(PemHeaders.EndCertificate, "")
-        }
-        .map { content =>
-          val certificateFactory: CertificateFactory = CertificateFactory.getInstance("X.509")
-          certificateFactory
-            .generateCertificate(new ByteArrayInputStream(DynamicSSLEngineProvider.base64Decode(content)))
-            .asInstanceOf[X509Certificate]
-        }
-        .toArray
-    }.getOrElse(Array.empty)
-  }
-
-  lazy val certificate: Option[X509Certificate] = Try {
-    cleanChain.split(PemHeaders.BeginCertificate).toSeq.tail.headOption.map { cert =>
-      val content: String                        = cert.replace(PemHeaders.EndCertificate, "")
-      val certificateFactory: CertificateFactory = CertificateFactory.getInstance("X.509")
-      certificateFactory
-        .generateCertificate(new ByteArrayInputStream(DynamicSSLEngineProvider.base64Decode(content)))
-        .asInstanceOf[X509Certificate]
-    }
-  }.toOption.flatten
-
-  lazy val caFromChain: Option[X509Certificate] = Try {
-    cleanChain.split(PemHeaders.BeginCertificate).toSeq.tail.lastOption.map { cert =>
-      val content: String                        = cert.replace(PemHeaders.EndCertificate, "")
-      val certificateFactory: CertificateFactory = CertificateFactory.getInstance("X.509")
-      certificateFactory
-        .generateCertificate(new ByteArrayInputStream(DynamicSSLEngineProvider.base64Decode(content)))
-        .asInstanceOf[X509Certificate]
-    }
-  }.toOption.flatten
-  lazy val metadata: Option[JsValue] = {
-    cleanChain.split(PemHeaders.BeginCertificate).toSeq.tail.headOption.map { cert =>
-      val content: String = cert.replace(PemHeaders.EndCertificate, "")
-      CertificateData(content)
-    }
-  }
-  lazy val isValid: Boolean = {
+  def certificates: Seq[X509Certificate]                = certificatesChain.toSeq
+  def certificatesChain: Array[X509Certificate]         = CertificateStore.materialize(this).chain
+  def certificate: Option[X509Certificate]              = CertificateStore.materialize(this).leaf
+  def caFromChain: Option[X509Certificate]              = CertificateStore.materialize(this).root
+  def metadata: Option[JsValue]                         = CertificateStore.materialize(this).metadata
+  lazy val isValid: Boolean = CertificateStore.isValid(this) {
     Try {
       val keyStore: KeyStore = KeyStore.getInstance("JKS")
       keyStore.load(null, null)
@@ -396,16 +330,7 @@ case class Cert(
       false
     } getOrElse false
   }
-  lazy val cryptoKeyPair: KeyPair = {
-    val privkey = DynamicSSLEngineProvider.readPrivateKeyUniversal(domain, privateKey, password).right.get
-
-    //val privkey: PrivateKey = DynamicSSLEngineProvider.readPrivateKey(privkeySpec) /*Try(KeyFactory.getInstance("RSA"))
-    //  .orElse(Try(KeyFactory.getInstance("DSA")))
-    //  .map(_.generatePrivate(privkeySpec))
-    //  .get
-    val pubkey: PublicKey = certificate.get.getPublicKey
-    new KeyPair(pubkey, privkey)
-  }
+  def cryptoKeyPair: KeyPair = CertificateStore.keyPair(this).get
 
   def toGenCertResponse(implicit env: Env): GenCertResponse = {
     val query = GenCsrQuery(
@@ -552,10 +477,10 @@ object Cert {
             .getOrElse("none"),
           domain = (json \ "domain").as[String],
           sans = (json \ "sans").asOpt[Seq[String]].getOrElse(Seq.empty),
-          chain = (json \ "chain").as[String],
+          chain = CertificateChain((json \ "chain").as[String]),
           caRef = (json \ "caRef").asOpt[String],
           password = (json \ "password").asOpt[String].filter(_.trim.nonEmpty),
-          privateKey = (json \ "privateKey").asOpt[String].getOrElse(""),
+          privateKey = CertificateStore.intern((json \ "privateKey").asOpt[String].getOrElse("")),
           selfSigned = (json \ "selfSigned").asOpt[Boolean].getOrElse(false),
           ca = (json \ "ca").asOpt[Boolean].getOrElse(false),
           client = (json \ "client").asOpt[Boolean].getOrElse(false),
@@ -638,6 +563,16 @@ object Cert {
 
 trait CertificateDataStore extends BasicStore[Cert] {
 
+  /**
+   * writes a batch of certificates without signaling the update to the other instances, `markUpdated()` has to be
+   * called once the whole batch (or the whole import) is written
+   */
+  def setAll(values: Seq[Cert])(implicit ec: ExecutionContext, env: Env): Future[Seq[Boolean]] = {
+    Future.sequence(values.map(v => set(v)))
+  }
+
+  def markUpdated()(implicit ec: ExecutionContext, env: Env): Future[Unit] = FastFuture.successful(())
+
   def syncTemplate(env: Env): Cert = {
     Cert(
       id = IdGenerator.namedId("cert", env),
@@ -685,146 +620,6 @@ trait CertificateDataStore extends BasicStore[Cert] {
     //   }
   }
 
-  def renewCertificates()(implicit ec: ExecutionContext, env: Env, mat: Materializer): Future[Unit] = {
-
-    def willBeInvalidSoon(cert: Cert): Boolean = {
-      val enriched         = cert.enrich()
-      val globalInterval   = new Interval(enriched.from, enriched.to)
-      val nowInterval      = new Interval(DateTime.now(), enriched.to)
-      val percentage: Long = (nowInterval.toDurationMillis * 100) / globalInterval.toDurationMillis
-      percentage < 20
-    }
-
-    def renewCAs(certificates: Seq[Cert]): Future[Unit] = {
-      val renewableCas = certificates
-        .filter(_.notRevoked)
-        .filter(_.autoRenew)
-        .filter(cert => cert.ca)
-        .filter(willBeInvalidSoon)
-        .filterNot(c =>
-          c.entityMetadata.get("untilExpiration").contains("true") || c.name.startsWith("[UNTIL EXPIRATION] ")
-        )
-      Source(renewableCas.toList)
-        .mapAsync(1) { case c =>
-          c.renew()
-            .flatMap(d =>
-              c.copy(
-                id = IdGenerator.token,
-                name = "[UNTIL EXPIRATION] " + c.name,
-                entityMetadata = c.entityMetadata ++ Map(
-                  "untilExpiration" -> "true",
-                  "nextCertificate" -> c.id
-                )
-              ).save()
-                .map(_ => d)
-            )
-            .flatMap(c => c.save().map(_ => c))
-        }
-        .map { c =>
-          Alerts.send(
-            CertRenewalAlert(
-              env.snowflakeGenerator.nextIdStr(),
-              env.env,
-              c
-            )
-          )
-        }
-        .runWith(Sink.ignore)
-        .map(_ => ())
-    }
-
-    def renewNonCaCertificates(certificates: Seq[Cert]): Future[Unit] = {
-      val renewableCertificates = certificates
-        .filter(_.notRevoked)
-        .filter(_.autoRenew)
-        .filterNot(_.ca)
-        .filter(willBeInvalidSoon) // TODO: fix
-        .filterNot(c =>
-          c.entityMetadata.get("untilExpiration").contains("true") || c.name.startsWith("[UNTIL EXPIRATION] ")
-        )
-      Source(renewableCertificates.toList)
-        .mapAsync(1) { case c =>
-          c.renew()
-            .flatMap(d =>
-              c.copy(
-                id = IdGenerator.token,
-                name = "[UNTIL EXPIRATION] " + c.name,
-                entityMetadata = c.entityMetadata ++ Map(
-                  "untilExpiration" -> "true",
-                  "nextCertificate" -> c.id
-                )
-              ).save()
-                .map(_ => d)
-            )
-            .flatMap(c => c.save().map(_ => c))
-        }
-        .map { c =>
-          Alerts.send(
-            CertRenewalAlert(
-              env.snowflakeGenerator.nextIdStr(),
-              env.env,
-              c
-            )
-          )
-        }
-        .runWith(Sink.ignore)
-        .map(_ => ())
-    }
-
-    def markExpiredCertsAsExpired(certificates: Seq[Cert]): Future[Unit] = {
-      val expiredWithFlagCertificates = certificates
-        .map(_.enrich())
-        .filter(_.entityMetadata.get("expired").contains("true"))
-      val expiredCertificates         = certificates
-        .map(_.enrich())
-        .filter(_.notRevoked)
-        .filterNot { cert =>
-          cert.from.isBefore(org.joda.time.DateTime.now()) && cert.to.isAfter(org.joda.time.DateTime.now())
-        }
-      for {
-        _ <- Source(expiredCertificates.toList)
-               .mapAsync(1) {
-                 case c if c.entityMetadata.get("expired").contains("true") || c.name.startsWith("[EXPIRED] ")    =>
-                   c.applyOn(d => d.save().map(_ => d))
-                 case c if !(c.entityMetadata.get("expired").contains("true") || c.name.startsWith("[EXPIRED] ")) =>
-                   c.copy(name = "[EXPIRED] " + c.name, entityMetadata = c.entityMetadata ++ Map("expired" -> "true"))
-                     .applyOn(d => d.save().map(_ => d))
-               }
-               .map { c =>
-                 Alerts.send(
-                   CertExpiredAlert(
-                     env.snowflakeGenerator.nextIdStr(),
-                     env.env,
-                     c
-                   )
-                 )
-               }
-               .runWith(Sink.ignore)
-               .map(_ => ())
-        _ <- Source(expiredWithFlagCertificates.toList)
-               .filter { cert =>
-                 cert.from.isBefore(org.joda.time.DateTime.now()) && cert.to.isAfter(org.joda.time.DateTime.now())
-               }
-               .mapAsync(1) { cert =>
-                 cert
-                   .copy(name = cert.name.replace("[EXPIRED] ", ""), entityMetadata = cert.entityMetadata - "expired")
-                   .save()
-               }
-               .runWith(Sink.ignore)
-               .map(_ => ())
-      } yield ()
-    }
-
-    for {
-      certificates   <- findAll()
-      _              <- renewCAs(certificates)
-      ncertificates  <- findAll()
-      _              <- renewNonCaCertificates(ncertificates)
-      nncertificates <- findAll()
-      _              <- markExpiredCertsAsExpired(nncertificates)
-    } yield ()
-  }
-
   def readCertOrKey(conf: Configuration, path: String, env: Env): Option[String] = {
     conf.getOptionalWithFileSupport[String](path).flatMap { cacert =>
       if (
@@ -855,6 +650,22 @@ trait CertificateDataStore extends BasicStore[Cert] {
     }
   }
 
+  private def initialCertificate(chain: String, privateKey: String, ca: Boolean): Cert = {
+    val _cert = Cert(
+      id = IdGenerator.uuid,
+      name = "none",
+      description = "none",
+      chain = chain,
+      privateKey = privateKey,
+      caRef = None,
+      ca = ca,
+      client = false,
+      exposed = false,
+      revoked = false
+    ).enrich()
+    _cert.copy(name = _cert.domain, description = s"Certificate for ${_cert.subject}")
+  }
+
   def importOneCert(
       name: String,
       conf: Configuration,
@@ -870,19 +681,7 @@ trait CertificateDataStore extends BasicStore[Cert] {
   ): Unit = {
     if (importCa) {
       readCertOrKey(conf, caPath, env).foreach { cacert =>
-        val _cert = Cert(
-          id = IdGenerator.uuid,
-          name = "none",
-          description = "none",
-          chain = cacert,
-          privateKey = "",
-          caRef = None,
-          ca = true,
-          client = false,
-          exposed = false,
-          revoked = false
-        ).enrich()
-        val cert  = _cert.copy(name = _cert.domain, description = s"Certificate for ${_cert.subject}")
+        val cert = initialCertificate(cacert, "", ca = true)
         findAll().map { certs =>
           val found = certs
             .map(_.enrich())
@@ -906,18 +705,7 @@ trait CertificateDataStore extends BasicStore[Cert] {
       keyContent  <- readCertOrKey(conf, keyPath, env)
     } yield {
       logger.info(s"importing ${name} ...")
-      val _cert = Cert(
-        id = IdGenerator.uuid,
-        name = "none",
-        description = "none",
-        chain = certContent + s"\n${caContent}",
-        privateKey = keyContent,
-        caRef = None,
-        client = false,
-        exposed = false,
-        revoked = false
-      ).enrich()
-      val cert  = _cert.copy(name = _cert.domain, description = s"Certificate for ${_cert.subject}")
+      val cert = initialCertificate(certContent + s"\n${caContent}", keyContent, ca = false)
       findAll().map { certs =>
         val found = certs
           .map(_.enrich())
@@ -957,22 +745,37 @@ trait CertificateDataStore extends BasicStore[Cert] {
       None,
       env.configuration.getOptional[Boolean]("otoroshi.ssl.initialCertImportCa").getOrElse(false)
     )(env, ec)
-    env.configuration
+    // the initial certificates list can be huge, so it goes through the bulk import to avoid one datastore scan and
+    // one tls registry update per certificate
+    val entries = env.configuration
       .getOptionalWithFileSupport[Seq[Configuration]]("otoroshi.ssl.initialCerts")
       .getOrElse(Seq.empty[Configuration])
       .zipWithIndex
-      .foreach { case (conf, idx) =>
-        importOneCert(
-          s"initial certificate ${idx}",
-          conf,
-          "ca",
-          "cert",
-          "key",
-          logger,
-          None,
-          conf.getOptional[Boolean]("importCa").getOrElse(false)
-        )(env, ec)
+      .flatMap { case (conf, idx) =>
+        val caContent = readCertOrKey(conf, "ca", env)
+        val importCa  = conf.getOptional[Boolean]("importCa").getOrElse(false)
+        val caEntry   = caContent.filter(_ => importCa).map { cacert =>
+          (s"initial certificate ${idx} ca", () => initialCertificate(cacert, "", ca = true))
+        }
+        val certEntry = for {
+          certContent <- readCertOrKey(conf, "cert", env)
+          keyContent  <- readCertOrKey(conf, "key", env)
+        } yield {
+          (
+            s"initial certificate ${idx}",
+            () => initialCertificate(certContent + s"\n${caContent.getOrElse("")}", keyContent, ca = false)
+          )
+        }
+        caEntry.toSeq ++ certEntry.toSeq
       }
+      .zipWithIndex
+      .map { case ((name, parse), idx) => CertificateBulkImportEntry(idx.toLong, name, parse) }
+    if (entries.nonEmpty) {
+      new CertificateBulkImport(env).run(Source(entries.toList)).andThen {
+        case Success(result) => logger.info(s"initial certificates import: ${result.json.stringify}")
+        case Failure(e)      => logger.error("error while importing initial certificates", e)
+      }
+    }
   }
 
   def hasInitialCerts()(implicit env: Env, ec: ExecutionContext): Boolean = {
@@ -1126,7 +929,8 @@ object DynamicSSLEngineProvider {
   private def allUnrevokedCertMap: TrieMap[String, Cert] = {
     val datastoreCerts = getCurrentEnv().proxyState.allCertificatesMap().filter(_._2.notRevoked)
     val genCerts       = autogenCerts.asMap()
-    new UnboundedTrieMap[String, Cert]().++=(datastoreCerts).++=(genCerts)
+    val watchedCerts   = WatchedCertificates.asMap()
+    new UnboundedTrieMap[String, Cert]().++=(datastoreCerts).++=(genCerts).++=(watchedCerts)
   }
   private def allUnrevokedCertSeq: Seq[Cert] = allUnrevokedCertMap.values.toSeq
 
@@ -1145,6 +949,7 @@ object DynamicSSLEngineProvider {
 
   def setCurrentEnv(env: Env): Unit = {
     currentEnv.set(env)
+    CertificateStore.configure(env)
   }
 
   def getCurrentEnv(): Env = {
@@ -1539,7 +1344,7 @@ object DynamicSSLEngineProvider {
       case cert if cert.privateKey.trim.isEmpty => {
         cert.certificate.foreach { certificate =>
           val id                                     = "trusted-" + certificate.getSerialNumber.toString(16)
-          val certificateChain: Seq[X509Certificate] = readCertificateChain(cert.domain, cert.cleanChain)
+          val certificateChain: Seq[X509Certificate] = cert.certificates
           val domain                                 = Try {
             certificateChain.head.maybeDomain.getOrElse(cert.domain)
           }.toOption.getOrElse(cert.domain)
@@ -1558,9 +1363,10 @@ object DynamicSSLEngineProvider {
       case cert                                 => {
         cert.certificate.foreach { certificate =>
           Try {
-            readPrivateKeyUniversal(cert.domain, cert.privateKey, cert.password).foreach { key: PrivateKey =>
+            // the key pair and the chain are the ones shared by every copy of this certificate
+            CertificateStore.keyPair(cert).map(_.getPrivate).foreach { key: PrivateKey =>
               // val key: PrivateKey = readPrivateKey(encodedKeySpec)
-              val certificateChain: Seq[X509Certificate] = readCertificateChain(cert.domain, cert.cleanChain)
+              val certificateChain: Seq[X509Certificate] = cert.certificates
               if (certificateChain.isEmpty) {
                 logger.error(s"[${cert.id}] Certificate file does not contain any certificates :(")
               } else {
@@ -1614,15 +1420,14 @@ object DynamicSSLEngineProvider {
       cacertPassword: String
   ): Array[TrustManager] = {
     if (logger.isDebugEnabled) logger.debug(s"Creating truststore ...")
-    val tmf    = TrustManagerFactory.getInstance("SunX509")
+    val tmf = TrustManagerFactory.getInstance("SunX509")
     tmf.init(keyStore)
-    val javaKs = KeyStore.getInstance("JKS")
-    // TODO: optimize here: avoid reading file all the time
-    javaKs.load(new FileInputStream(cacertPath), cacertPassword.toCharArray)
-    val tmf2   = TrustManagerFactory.getInstance("SunX509")
-    tmf2.init(javaKs)
     Array[TrustManager](
-      new FakeTrustManager((tmf.getTrustManagers ++ tmf2.getTrustManagers).map(_.asInstanceOf[X509TrustManager]).toSeq)
+      new FakeTrustManager(
+        tmf.getTrustManagers.map(_.asInstanceOf[X509TrustManager]).toSeq ++ JdkTrustAnchorsCache
+          .trustManagers(cacertPath, cacertPassword),
+        settings = chainValidationSettings()
+      )
     )
   }
 
@@ -1631,10 +1436,17 @@ object DynamicSSLEngineProvider {
     val tmf = TrustManagerFactory.getInstance("SunX509")
     tmf.init(keyStore)
     Array[TrustManager](
-      new FakeTrustManager(tmf.getTrustManagers.map(_.asInstanceOf[X509TrustManager]).toSeq)
+      new FakeTrustManager(
+        tmf.getTrustManagers.map(_.asInstanceOf[X509TrustManager]).toSeq,
+        settings = chainValidationSettings()
+      )
     )
   }
 
+  private def chainValidationSettings(): ChainValidationSettings = {
+    Option(currentEnv.get()).map(env => ChainValidationSettings(env)).getOrElse(ChainValidationSettings())
+  }
+
   def readCertificateChain(id: String, certificateChain: String, log: Boolean = true): Seq[X509Certificate] = {
     if (log && logger.isDebugEnabled) logger.debug(s"Reading cert chain for $id")
     val matcher: Matcher                       = CERT_PATTERN.matcher(certificateChain)
@@ -2716,45 +2528,78 @@ class VeryNiceTrustManager(managers: Seq[X509TrustManager]) extends X509Extended
   def checkServerTrusted(var1: Array[X509Certificate], var2: String, var3: SSLEngine): Unit = ()
 }
 
-class FakeTrustManager(managers: Seq[X509TrustManager]) extends X509ExtendedTrustManager {
+/**
+ * never fails a handshake by itself (the routes and plugins decide what to do with the client certificates), the
+ * outcome of the path building (the index of the manager that accepted the chain, or none) is what gets cached
+ */
+class FakeTrustManager(
+    managers: Seq[X509TrustManager],
+    cacheValidations: Boolean = true,
+    settings: ChainValidationSettings = ChainValidationSettings()
+) extends X509ExtendedTrustManager {
+
+  private val trustSetVersion = ChainValidationCache.nextTrustSetVersion()
 
-  def checkClientTrusted(var1: Array[X509Certificate], var2: String): Unit = {
-    managers.find(m => Try(m.checkClientTrusted(var1, var2)).isSuccess)
+  if (cacheValidations) ChainValidationCache.configure(settings)
+
+  private def validate(client: Boolean, chain: Array[X509Certificate], authType: String)(
+      f: => Option[Int]
+  ): Option[Int] = {
+    if (cacheValidations) ChainValidationCache.validate(trustSetVersion, settings.bucket, client, chain, authType)(f)
+    else f
   }
 
-  def checkServerTrusted(var1: Array[X509Certificate], var2: String): Unit = {
-    managers.find(m => Try(m.checkServerTrusted(var1, var2)).isSuccess)
+  private def accepting(check: X509TrustManager => Unit): Option[Int] = {
+    val index = managers.indexWhere(m => Try(check(m)).isSuccess)
+    if (index < 0) None else Some(index)
   }
 
+  /**
+   * the index of the trust manager that accepted the chain, if any
+   */
+  def acceptedBy(client: Boolean, chain: Array[X509Certificate], authType: String): Option[Int] =
+    validate(client, chain, authType) {
+      if (client) accepting(_.checkClientTrusted(chain, authType))
+      else accepting(_.checkServerTrusted(chain, authType))
+    }
+
+  def checkClientTrusted(var1: Array[X509Certificate], var2: String): Unit = acceptedBy(true, var1, var2)
+
+  def checkServerTrusted(var1: Array[X509Certificate], var2: String): Unit = acceptedBy(false, var1, var2)
+
   def getAcceptedIssuers: Array[X509Certificate] = managers.flatMap(_.getAcceptedIssuers).toArray
 
-  def checkClientTrusted(var1: Array[X509Certificate], var2: String, var3: Socket): Unit = {
-    managers.find {
-      case m: X509ExtendedTrustManager => Try(m.checkClientTrusted(var1, var2, var3)).isSuccess
-      case m: X509TrustManager         => Try(m.checkClientTrusted(var1, var2)).isSuccess
+  def checkClientTrusted(var1: Array[X509Certificate], var2: String, var3: Socket): Unit =
+    validate(true, var1, var2) {
+      accepting {
+        case m: X509ExtendedTrustManager => m.checkClientTrusted(var1, var2, var3)
+        case m: X509TrustManager         => m.checkClientTrusted(var1, var2)
+      }
     }
-  }
 
-  def checkServerTrusted(var1: Array[X509Certificate], var2: String, var3: Socket): Unit = {
-    managers.find {
-      case m: X509ExtendedTrustManager => Try(m.checkServerTrusted(var1, var2, var3)).isSuccess
-      case m: X509TrustManager         => Try(m.checkServerTrusted(var1, var2)).isSuccess
+  def checkServerTrusted(var1: Array[X509Certificate], var2: String, var3: Socket): Unit =
+    validate(false, var1, var2) {
+      accepting {
+        case m: X509ExtendedTrustManager => m.checkServerTrusted(var1, var2, var3)
+        case m: X509TrustManager         => m.checkServerTrusted(var1, var2)
+      }
     }
-  }
 
-  def checkClientTrusted(var1: Array[X509Certificate], var2: String, var3: SSLEngine): Unit = {
-    managers.find {
-      case m: X509ExtendedTrustManager => Try(m.checkClientTrusted(var1, var2, var3)).isSuccess
-      case m: X509TrustManager         => Try(m.checkClientTrusted(var1, var2)).isSuccess
+  def checkClientTrusted(var1: Array[X509Certificate], var2: String, var3: SSLEngine): Unit =
+    validate(true, var1, var2) {
+      accepting {
+        case m: X509ExtendedTrustManager => m.checkClientTrusted(var1, var2, var3)
+        case m: X509TrustManager         => m.checkClientTrusted(var1, var2)
+      }
     }
-  }
 
-  def checkServerTrusted(var1: Array[X509Certificate], var2: String, var3: SSLEngine): Unit = {
-    managers.find {
-      case m: X509ExtendedTrustManager => Try(m.checkServerTrusted(var1, var2, var3)).isSuccess
-      case m: X509TrustManager         => Try(m.checkServerTrusted(var1, var2)).isSuccess
+  def checkServerTrusted(var1: Array[X509Certificate], var2: String, var3: SSLEngine): Unit =
+    validate(false, var1, var2) {
+      accepting {
+        case m: X509ExtendedTrustManager => m.checkServerTrusted(var1, var2, var3)
+        case m: X509TrustManager         => m.checkServerTrusted(var1, var2)
+      }
     }
-  }
 }
 
 object SSLImplicits {
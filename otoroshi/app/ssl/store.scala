@@ -0,0 +1,504 @@
+package otoroshi.ssl
+
+import com.github.blemale.scaffeine.{Cache, Scaffeine}
+import com.google.common.collect.Interners
+import otoroshi.env.Env
+import otoroshi.utils.cache.types.UnboundedTrieMap
+import otoroshi.utils.syntax.implicits._
+import play.api.libs.json._
+
+import java.io.ByteArrayInputStream
+import java.lang.management.ManagementFactory
+import java.math.BigInteger
+import java.nio.charset.StandardCharsets
+import java.security.cert.{CertificateFactory, X509Certificate}
+import java.security.KeyPair
+import java.util.Base64
+import java.util.concurrent.atomic.{AtomicLong, AtomicReference}
+import scala.collection.JavaConverters._
+import scala.util.Try
+
+/**
+ * Certificate chain of a `Cert`. The certificates are held once, as their DER encodings packed in a single byte array,
+ * and the PEM form is rebuilt when it is read (datastore, admin api, exports), only the line breaks of the original
+ * PEM may differ. Chains are interned by content so every copy of a certificate shares the same bytes. A chain that
+ * can not be decoded (empty, truncated, other PEM blocks or text between the certificates) is kept as is.
+ */
+final class CertificateChain private (private val encoded: Array[Byte], private val raw: String) {
+
+  private var hash: Int = 0
+
+  def compact: Boolean = encoded != null
+
+  def isEmpty: Boolean = !compact && raw.trim.isEmpty
+
+  def certificates: Seq[X509Certificate] = {
+    if (compact) {
+      CertificateFactory
+        .getInstance("X.509")
+        .generateCertificates(new ByteArrayInputStream(encoded))
+        .asScala
+        .toSeq
+        .map(_.asInstanceOf[X509Certificate])
+    } else Seq.empty
+  }
+
+  def pem: String = {
+    if (compact) {
+      CertificateChain
+        .split(encoded)
+        .map { case (start, end) =>
+          val content = CertificateMaterial.encoder.encodeToString(java.util.Arrays.copyOfRange(encoded, start, end))
+          s"${PemHeaders.BeginCertificate}\n${content}\n${PemHeaders.EndCertificate}\n"
+        }
+        .mkString
+    } else raw
+  }
+
+  private[ssl] def bytes: Array[Byte] = if (compact) encoded else raw.getBytes(StandardCharsets.UTF_8)
+
+  override def toString: String = pem
+
+  override def equals(obj: Any): Boolean = obj match {
+    case other: CertificateChain if other eq this => true
+    case other: CertificateChain if compact       => other.compact && java.util.Arrays.equals(encoded, other.encoded)
+    case other: CertificateChain                  => !other.compact && raw == other.raw
+    case _                                        => false
+  }
+
+  override def hashCode(): Int = {
+    if (hash == 0) {
+      hash = if (compact) java.util.Arrays.hashCode(encoded) else raw.hashCode
+    }
+    hash
+  }
+}
+
+object CertificateChain {
+
+  private val interner = Interners.newWeakInterner[CertificateChain]()
+
+  val empty: CertificateChain = new CertificateChain(null, "")
+
+  def apply(pem: String): CertificateChain = {
+    if (pem == null || pem.trim.isEmpty) empty else interner.intern(decode(pem))
+  }
+
+  implicit def fromPem(pem: String): CertificateChain = apply(pem)
+  implicit def toPem(chain: CertificateChain): String = chain.pem
+  implicit val format: Format[CertificateChain]       = Format(
+    Reads.StringReads.map(pem => CertificateChain(pem)),
+    Writes[CertificateChain](chain => JsString(chain.pem))
+  )
+
+  private def decode(pem: String): CertificateChain = {
+    val matcher = DynamicSSLEngineProvider.CERT_PATTERN.matcher(pem)
+    val out     = new java.io.ByteArrayOutputStream(pem.length * 3 / 4)
+    var start   = 0
+    var valid   = true
+    while (valid && matcher.find(start)) {
+      val der = Try(DynamicSSLEngineProvider.base64Decode(matcher.group(1))).toOption
+      valid = pem.substring(start, matcher.start()).trim.isEmpty &&
+        matcher.group().startsWith(PemHeaders.BeginCertificate) &&
+        der.exists(bytes => split(bytes) == Seq((0, bytes.length)))
+      der.filter(_ => valid).foreach(bytes => out.write(bytes))
+      start = matcher.end
+    }
+    if (valid && out.size() > 0 && pem.substring(start).trim.isEmpty) {
+      new CertificateChain(out.toByteArray, null)
+    } else {
+      new CertificateChain(null, pem)
+    }
+  }
+
+  /**
+   * bounds of each DER encoded certificate (an ASN.1 SEQUENCE) packed in `encoded`. Stops at the first malformed
+   * header, so the last bound does not reach the end of the array when the content is not a list of certificates
+   */
+  private[ssl] def split(encoded: Array[Byte]): Seq[(Int, Int)] = {
+    val bounds = Seq.newBuilder[(Int, Int)]
+    var offset = 0
+    var valid  = true
+    while (valid && offset + 2 <= encoded.length) {
+      if (encoded(offset) != 0x30) {
+        valid = false
+      } else {
+        val first = encoded(offset + 1) & 0xff
+        val (length, header) = if (first < 0x80) {
+          (first.toLong, 2)
+        } else {
+          val count = first & 0x7f
+          if (count == 0 || count > 4 || offset + 2 + count > encoded.length) {
+            (-1L, 0)
+          } else {
+            var len = 0L
+            (0 until count).foreach(i => len = (len << 8) | (encoded(offset + 2 + i) & 0xff))
+            (len, 2 + count)
+          }
+        }
+        val end = offset + header + length
+        if (length < 0 || end > encoded.length) {
+          valid = false
+        } else {
+          bounds += ((offset, end.toInt))
+          offset = end.toInt
+        }
+      }
+    }
+    bounds.result()
+  }
+}
+
+/**
+ * Parsed form of a certificate chain: the decoded X509 chain, the clean PEM chain and the metadata. It is derived from
+ * the DER bytes of a `CertificateChain` and only kept while it is in the bounded cache of `CertificateStore`. The key
+ * pair and the validity also depend on the private key, they are kept for the last private key seen with this chain.
+ */
+final class CertificateMaterial(
+    val chain: Array[X509Certificate],
+    val leaf: Option[X509Certificate],
+    val root: Option[X509Certificate]
+) {
+
+  lazy val cleanChain: String        = {
+    val certificates = if (chain.nonEmpty) chain.toSeq else (leaf.toSeq ++ root.toSeq).distinct
+    certificates.map(CertificateMaterial.toPem).mkString("\n")
+  }
+  lazy val metadata: Option[JsValue] =
+    leaf.flatMap(c => Try(CertificateData(CertificateMaterial.encoder.encodeToString(c.getEncoded))).toOption)
+
+  private[ssl] val keys = new AtomicReference[CertificateKeyMaterial](null)
+}
+
+object CertificateMaterial {
+  private[ssl] val encoder = Base64.getMimeEncoder(64, "\n".getBytes(StandardCharsets.US_ASCII))
+  def toPem(cert: X509Certificate): String =
+    s"${PemHeaders.BeginCertificate}\n${encoder.encodeToString(cert.getEncoded)}\n${PemHeaders.EndCertificate}"
+}
+
+case class CertificateKeyMaterial(
+    privateKey: String,
+    password: Option[String],
+    keyPair: Option[KeyPair],
+    valid: Option[Boolean]
+) {
+  def matches(cert: Cert): Boolean =
+    ((privateKey eq cert.privateKey) || privateKey == cert.privateKey) && password == cert.password
+}
+
+/**
+ * Shared store for the parsed form of certificates. `Cert` instances only reference their interned
+ * `CertificateChain`, so every copy of a certificate (proxy state, autogen certs, key manager cache, keystore,
+ * `enrich()` copies and the copies read again on each sync) share the same DER bytes. The decoded X509 chain, metadata,
+ * key pair and validity are materialized on demand from those bytes and kept in a cache bounded by
+ * `otoroshi.ssl.store.max-materialized`, evicted material is parsed again from the bytes when needed.
+ */
+object CertificateStore {
+
+  private val interner = Interners.newWeakInterner[String]()
+
+  private val hits   = new AtomicLong(0L)
+  private val misses = new AtomicLong(0L)
+
+  val defaultMaxMaterialized = 20000L
+
+  private val materials: Cache[CertificateChain, CertificateMaterial] = Scaffeine()
+    .maximumSize(defaultMaxMaterialized)
+    .build[CertificateChain, CertificateMaterial]()
+
+  def configure(env: Env): Unit = {
+    resize(
+      env.configuration.getOptional[Long]("otoroshi.ssl.store.max-materialized").getOrElse(defaultMaxMaterialized)
+    )
+  }
+
+  def resize(maxMaterialized: Long): Unit = {
+    val eviction = materials.underlying.policy().eviction()
+    if (eviction.isPresent) eviction.get().setMaximum(maxMaterialized)
+  }
+
+  def maxMaterialized: Long = {
+    val eviction = materials.underlying.policy().eviction()
+    if (eviction.isPresent) eviction.get().getMaximum else defaultMaxMaterialized
+  }
+
+  def intern(value: String): String = if (value == null) value else interner.intern(value)
+
+  def materialize(cert: Cert): CertificateMaterial = {
+    materials.getIfPresent(cert.chain) match {
+      case Some(m) =>
+        hits.incrementAndGet()
+        m
+      case None    =>
+        misses.incrementAndGet()
+        materials.get(cert.chain, chain => parse(chain))
+    }
+  }
+
+  private def keysOf(cert: Cert): (CertificateMaterial, CertificateKeyMaterial) = {
+    val material = materialize(cert)
+    Option(material.keys.get()).filter(_.matches(cert)) match {
+      case Some(keys) => (material, keys)
+      case None       => (material, CertificateKeyMaterial(cert.privateKey, cert.password, None, None))
+    }
+  }
+
+  def keyPair(cert: Cert): Option[KeyPair] = {
+    val (material, keys) = keysOf(cert)
+    keys.keyPair.orElse {
+      val keyPair = for {
+        privkey <- DynamicSSLEngineProvider.readPrivateKeyUniversal(cert.domain, cert.privateKey, cert.password).toOption
+        certif  <- material.leaf
+      } yield new KeyPair(certif.getPublicKey, privkey)
+      if (keyPair.isDefined) material.keys.set(keys.copy(keyPair = keyPair))
+      keyPair
+    }
+  }
+
+  def isValid(cert: Cert)(f: => Boolean): Boolean = {
+    val (material, keys) = keysOf(cert)
+    keys.valid.getOrElse {
+      val valid = f
+      Option(material.keys.get()).filter(_.matches(cert)) match {
+        case Some(current) => material.keys.set(current.copy(valid = Some(valid)))
+        case None          => material.keys.set(keys.copy(valid = Some(valid)))
+      }
+      valid
+    }
+  }
+
+  def size: Long = {
+    materials.cleanUp()
+    materials.estimatedSize()
+  }
+
+  def stats(): JsValue = Json.obj(
+    "materialized" -> size,
+    "max"          -> maxMaterialized,
+    "hits"         -> hits.get(),
+    "misses"       -> misses.get()
+  )
+
+  def invalidateAll(): Unit = materials.invalidateAll()
+
+  private def parse(chain: CertificateChain): CertificateMaterial = {
+    if (chain.compact) {
+      val certificates = Try(chain.certificates).getOrElse(Seq.empty)
+      new CertificateMaterial(
+        chain = certificates.toArray,
+        leaf = certificates.headOption,
+        root = certificates.lastOption
+      )
+    } else {
+      // not decodable as a list of certificates, parsed block by block like before
+      val matcher = DynamicSSLEngineProvider.CERT_PATTERN.matcher(chain.pem)
+      var blocks  = Seq.empty[String]
+      var start   = 0
+      while ({ matcher.find(start) }) {
+        blocks = blocks :+ matcher.group(1)
+        start = matcher.end
+      }
+      val parsed  = blocks.map { content =>
+        Try {
+          val certificateFactory: CertificateFactory = CertificateFactory.getInstance("X.509")
+          certificateFactory
+            .generateCertificate(new ByteArrayInputStream(DynamicSSLEngineProvider.base64Decode(content)))
+            .asInstanceOf[X509Certificate]
+        }
+      }
+      new CertificateMaterial(
+        chain = if (parsed.forall(_.isSuccess)) parsed.map(_.get).toArray else Array.empty[X509Certificate],
+        leaf = parsed.headOption.flatMap(_.toOption),
+        root = parsed.lastOption.flatMap(_.toOption)
+      )
+    }
+  }
+}
+
+object CertificateStore_Test {
+
+  import SSLImplicits._
+
+  private def generate(count: Int): Seq[Cert] = {
+    val caKeyPair = CertificateFixtures.keyPair()
+    (0 until count).map { idx =>
+      val domain  = s"tenant-${idx}.oto.tools"
+      val keyPair = CertificateFixtures.keyPair()
+      val leaf    = CertificateFixtures.sign(
+        s"CN=${domain}",
+        keyPair,
+        "CN=Otoroshi Heap Benchmark CA",
+        caKeyPair,
+        serial = Some(BigInteger.valueOf(idx.toLong + 1L))
+      )
+      Cert._fmt
+        .reads(
+          Json.obj(
+            "id"         -> s"cert_${idx}",
+            "domain"     -> domain,
+            "chain"      -> leaf.asPem,
+            "privateKey" -> keyPair.getPrivate.asPem
+          )
+        )
+        .get
+    }
+  }
+
+  /**
+   * what a `Cert` retained before the store: its own PEM strings (every sync reads new ones from the datastore) and
+   * the lazy vals below, copied from the `Cert` of that time. The other fields did not change, they are measured on
+   * `cert` with an empty chain and private key
+   */
+  private class LegacyCert(val cert: Cert, val chain: String, val privateKey: String) {
+    lazy val cleanChain: String                        = {
+      val matcher: java.util.regex.Matcher = DynamicSSLEngineProvider.CERT_PATTERN.matcher(chain)
+      var certificates                     = Seq.empty[String]
+      var start                            = 0
+      while ({ matcher.find(start) }) {
+        certificates = certificates :+ matcher.group(1)
+        start = matcher.end
+      }
+      certificates
+        .map(c => s"${PemHeaders.BeginCertificate}\n$c${PemHeaders.EndCertificate}")
+        .flatMap(_.split("\\n"))
+        .filterNot(_.trim.isEmpty)
+        .mkString("\n")
+    }
+    lazy val certificatesChain: Array[X509Certificate] = {
+      Try {
+        cleanChain
+          .split(PemHeaders.BeginCertificate)
+          .toSeq
+          .map(_.trim)
+          .filterNot(_.isEmpty)
+          .map { content =>
+            content.replace(PemHeaders.BeginCertificate, "").replace(PemHeaders.EndCertificate, "")
+          }
+          .map { content =>
+            val certificateFactory: CertificateFactory = CertificateFactory.getInstance("X.509")
+            certificateFactory
+              .generateCertificate(new ByteArrayInputStream(DynamicSSLEngineProvider.base64Decode(content)))
+              .asInstanceOf[X509Certificate]
+          }
+          .toArray
+      }.getOrElse(Array.empty)
+    }
+    lazy val metadata: Option[JsValue]                 = {
+      cleanChain.split(PemHeaders.BeginCertificate).toSeq.tail.headOption.map { cert =>
+        val content: String = cert.replace(PemHeaders.EndCertificate, "")
+        CertificateData(content)
+      }
+    }
+  }
+
+  private def legacy(json: String, enrich: Boolean = false): LegacyCert = {
+    val value = Json.parse(json)
+    val cert  = Cert._fmt.reads(value).get
+    new LegacyCert(
+      (if (enrich) cert.enrich() else cert).copy(chain = CertificateChain.empty, privateKey = ""),
+      (value \ "chain").as[String],
+      (value \ "privateKey").as[String]
+    )
+  }
+
+  private def usedHeap(): Long = {
+    (0 until 3).foreach(_ => System.gc())
+    ManagementFactory.getMemoryMXBean.getHeapMemoryUsage.getUsed
+  }
+
+  /**
+   * the chain is held as DER bytes shared by every copy of a certificate, its PEM form is rebuilt from them. The
+   * parsed material is shared while it is in the bounded cache and parsed again from the bytes once evicted
+   */
+  def testSharing(count: Int = 30000): Unit = {
+    CertificateStore.invalidateAll()
+    val certs    = generate(count)
+    val reread   = certs.map(c => Cert._fmt.reads(c.json).get)
+    reread.zip(certs).foreach { case (cert, original) =>
+      assert(cert.chain.compact, s"chain of ${cert.id} is not held as der")
+      assert(cert.chain eq original.chain, s"chain of ${cert.id} is not shared")
+      assert(cert.enrich().chain eq original.chain, s"chain of ${cert.id} enriched is not shared")
+      assert(cert.chain.pem == original.certificate.get.asPem, s"pem of ${cert.id} is not rebuilt from der")
+      assert(cert.contentHash == original.contentHash)
+    }
+    val raw      = Cert._fmt.reads(certs.head.json.as[JsObject] ++ Json.obj("chain" -> "not a chain")).get
+    assert(!raw.chain.compact && raw.chain.pem == "not a chain" && raw.certificate.isEmpty, "raw chain is not kept")
+
+    val max      = CertificateStore.maxMaterialized
+    CertificateStore.resize(count / 10)
+    CertificateStore.invalidateAll()
+    try {
+      val first  = certs.take(count / 20).map(c => CertificateStore.materialize(c))
+      val before = (CertificateStore.stats() \ "misses").as[Long]
+      reread.take(count / 20).zip(first).foreach { case (cert, material) =>
+        assert(CertificateStore.materialize(cert) eq material, s"material of ${cert.id} is not shared")
+      }
+      assert((CertificateStore.stats() \ "misses").as[Long] == before, "cached certificates parsed again")
+      val keyPair = CertificateStore.keyPair(reread.head)
+      assert(keyPair.isDefined && (CertificateStore.keyPair(certs.head).get eq keyPair.get), "key pair is not shared")
+      reread.foreach(c => CertificateStore.materialize(c))
+      assert(CertificateStore.size <= count / 10, s"store holds ${CertificateStore.size} certificates")
+      certs.zip(reread).foreach { case (original, cert) =>
+        assert(cert.certificate.map(_.getSerialNumber) == original.certificate.map(_.getSerialNumber))
+      }
+      println(s"${count} certificates shared - ${CertificateStore.stats().stringify}")
+    } finally {
+      CertificateStore.resize(max)
+    }
+  }
+
+  /**
+   * mimics what a gateway keeps for on-demand certificates: the proxy state map, the autogen certs map and the key
+   * manager cache filled with `enrich()` copies whose chain and metadata were used. Each structure gets its own copy
+   * read from the datastore, as it happens on every sync. The same layout is measured with the `Cert` used before the
+   * store, the store must at least halve the heap used per certificate
+   */
+  def testHeap(counts: Seq[Int] = Seq(10000, 100000, 1000000)): Unit = {
+    counts.foreach { count =>
+      CertificateStore.invalidateAll()
+      val jsons       = generate(count).map(_.json.stringify)
+      val initial     = usedHeap()
+      val legacyState = new UnboundedTrieMap[String, LegacyCert]()
+      val legacyGen   = new UnboundedTrieMap[String, LegacyCert]()
+      val legacyKm    = new UnboundedTrieMap[String, LegacyCert]()
+      jsons.foreach { json =>
+        val state    = legacy(json)
+        val gen      = legacy(json)
+        val enriched = legacy(json, enrich = true)
+        legacyState.put(state.cert.id, state)
+        legacyGen.put(gen.cert.id, gen)
+        legacyKm.put(enriched.cert.domain, enriched)
+        enriched.certificatesChain
+        enriched.metadata
+      }
+      // enrich() fills the store, it is not part of the legacy layout
+      CertificateStore.invalidateAll()
+      val before      = usedHeap() - initial
+      assert(legacyState.size + legacyGen.size + legacyKm.size == count * 3)
+      legacyState.clear()
+      legacyGen.clear()
+      legacyKm.clear()
+
+      val empty        = usedHeap()
+      val proxyState   = new UnboundedTrieMap[String, Cert]()
+      val autogenCerts = new UnboundedTrieMap[String, Cert]()
+      val keyManager   = new UnboundedTrieMap[String, Cert]()
+      jsons.foreach { json =>
+        val state    = Cert._fmt.reads(Json.parse(json)).get
+        val gen      = Cert._fmt.reads(Json.parse(json)).get
+        val enriched = Cert._fmt.reads(Json.parse(json)).get.enrich()
+        proxyState.put(state.id, state)
+        autogenCerts.put(gen.id, gen)
+        keyManager.put(enriched.domain, enriched)
+        enriched.certificatesChain
+        enriched.metadata
+      }
+      val after        = usedHeap() - empty
+      assert(proxyState.size + autogenCerts.size + keyManager.size == count * 3)
+      println(
+        s"${count} certificates - before: ${before / count} bytes per certificate (${before / 1024 / 1024} mb), after: ${after / count} bytes per certificate (${after / 1024 / 1024} mb) - ${CertificateStore.stats().stringify}"
+      )
+      assert(after * 2 <= before, s"store uses ${after} bytes for ${count} certificates, baseline uses ${before}")
+    }
+  }
+}
@@ -0,0 +1,350 @@
+package otoroshi.ssl
+
+import com.github.blemale.scaffeine.{Cache, Scaffeine}
+import com.google.common.hash.Hashing
+import otoroshi.env.Env
+import otoroshi.utils.syntax.implicits._
+import play.api.Logger
+import play.api.libs.json.{JsValue, Json}
+
+import java.io.{File, FileInputStream}
+import java.nio.ByteBuffer
+import java.security.cert.X509Certificate
+import java.security.{KeyPair, KeyStore}
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.{AtomicLong, AtomicReference}
+import javax.net.ssl._
+import scala.concurrent.duration._
+import scala.util.Try
+
+case class JdkTrustAnchors(path: String, password: String, lastModified: Long, size: Long, managers: Seq[X509TrustManager])
+
+/**
+ * the JDK cacerts file never changes during the life of the process (most of the time), so it's loaded and
+ * decrypted once and reloaded only when the file changes on disk
+ */
+object JdkTrustAnchorsCache {
+
+  private val logger = Logger("otoroshi-jdk-trust-anchors")
+  private val ref    = new AtomicReference[JdkTrustAnchors](null)
+
+  def trustManagers(path: String, password: String): Seq[X509TrustManager] = {
+    val file         = new File(path)
+    val lastModified = file.lastModified()
+    val size         = file.length()
+    Option(ref.get()) match {
+      case Some(anchors)
+          if anchors.path == path && anchors.password == password && anchors.lastModified == lastModified && anchors.size == size =>
+        anchors.managers
+      case _ =>
+        if (logger.isDebugEnabled) logger.debug(s"loading jdk trust anchors from '${path}'")
+        val javaKs = KeyStore.getInstance("JKS")
+        val is     = new FileInputStream(file)
+        try {
+          javaKs.load(is, password.toCharArray)
+        } finally {
+          is.close()
+        }
+        val tmf      = TrustManagerFactory.getInstance("SunX509")
+        tmf.init(javaKs)
+        val managers = tmf.getTrustManagers.map(_.asInstanceOf[X509TrustManager]).toSeq
+        ref.set(JdkTrustAnchors(path, password, lastModified, size, managers))
+        managers
+    }
+  }
+
+  def invalidate(): Unit = ref.set(null)
+}
+
+case class ChainValidationKey(trustSetVersion: Long, client: Boolean, authType: String, fingerprint: String, bucket: Long)
+
+case class ChainValidationSettings(bucket: Long = 60000L, maxSize: Long = 10000L)
+
+object ChainValidationSettings {
+  def apply(env: Env): ChainValidationSettings = {
+    ChainValidationSettings(
+      bucket = env.configuration.getOptional[Long]("otoroshi.ssl.chain-validation-cache.bucket").getOrElse(60000L),
+      maxSize = env.configuration.getOptional[Long]("otoroshi.ssl.chain-validation-cache.max-size").getOrElse(10000L)
+    )
+  }
+}
+
+/**
+ * Remembers the outcome of the path building of a chain for a given trust set: the index of the trust manager that
+ * accepted it, or none of them, so clients reconnecting with the same certificate skip it. Every trust manager built
+ * by `setCertificates` gets a new trust set version, so any change of the certificates (including revocations)
+ * invalidates previous results. The validity time bucket ensures a chain is never considered valid past its
+ * expiration. A validation that throws is never cached.
+ */
+object ChainValidationCache {
+
+  private val versions = new AtomicLong(0L)
+  private val hits     = new AtomicLong(0L)
+  private val misses   = new AtomicLong(0L)
+  private val none     = java.lang.Integer.valueOf(-1)
+
+  private val cache: Cache[ChainValidationKey, java.lang.Integer] = Scaffeine()
+    .maximumSize(ChainValidationSettings().maxSize)
+    .expireAfterWrite(ChainValidationSettings().bucket.millis * 2)
+    .build[ChainValidationKey, java.lang.Integer]()
+
+  /**
+   * applies the settings read from the env when a trust manager is built, the cache itself is shared by all of them
+   */
+  def configure(settings: ChainValidationSettings): Unit = {
+    val policy = cache.underlying.policy()
+    if (policy.eviction().isPresent && policy.eviction().get().getMaximum != settings.maxSize) {
+      policy.eviction().get().setMaximum(settings.maxSize)
+    }
+    if (policy.expireAfterWrite().isPresent) {
+      policy.expireAfterWrite().get().setExpiresAfter(settings.bucket * 2, TimeUnit.MILLISECONDS)
+    }
+  }
+
+  def maxSize: Long = {
+    val eviction = cache.underlying.policy().eviction()
+    if (eviction.isPresent) eviction.get().getMaximum else Long.MaxValue
+  }
+
+  def nextTrustSetVersion(): Long = versions.incrementAndGet()
+
+  def fingerprint(chain: Array[X509Certificate]): String = {
+    val hasher = Hashing.sha256().newHasher()
+    chain.foreach(c => hasher.putBytes(c.getEncoded))
+    hasher.hash().toString
+  }
+
+  def validate(
+      trustSetVersion: Long,
+      bucket: Long,
+      client: Boolean,
+      chain: Array[X509Certificate],
+      authType: String
+  )(
+      f: => Option[Int]
+  ): Option[Int] = {
+    val now = System.currentTimeMillis()
+    if (chain == null || chain.isEmpty || chain.exists(_.getNotAfter.getTime < now + bucket)) {
+      f
+    } else {
+      val key = ChainValidationKey(trustSetVersion, client, authType, fingerprint(chain), now / bucket)
+      cache.getIfPresent(key) match {
+        case Some(accepted) =>
+          hits.incrementAndGet()
+          metrics(hit = true)
+          if (accepted.intValue() < 0) None else Some(accepted.intValue())
+        case None           =>
+          misses.incrementAndGet()
+          metrics(hit = false)
+          val accepted = f
+          cache.put(key, accepted.map(java.lang.Integer.valueOf).getOrElse(none))
+          accepted
+      }
+    }
+  }
+
+  private def metrics(hit: Boolean): Unit = {
+    Option(DynamicSSLEngineProvider.getCurrentEnv()).foreach { env =>
+      if (hit) env.metrics.counterInc("tls.chain-validation-cache.hits")
+      else env.metrics.counterInc("tls.chain-validation-cache.misses")
+    }
+  }
+
+  def hitRate(): Double = {
+    val h = hits.get()
+    val t = h + misses.get()
+    if (t == 0L) 0.0 else h.toDouble / t.toDouble
+  }
+
+  def stats(): JsValue = Json.obj(
+    "size"     -> cache.estimatedSize(),
+    "hits"     -> hits.get(),
+    "misses"   -> misses.get(),
+    "hit_rate" -> hitRate()
+  )
+
+  def invalidateAll(): Unit = cache.invalidateAll()
+}
+
+object ChainValidationCache_Test {
+
+  // counts the path buildings that went through the underlying trust manager, and the ones that failed
+  private class CountingTrustManager(underlying: X509TrustManager) extends X509TrustManager {
+    val validations = new AtomicLong(0L)
+    val failures    = new AtomicLong(0L)
+    private def count(f: => Unit): Unit = {
+      validations.incrementAndGet()
+      Try(f).failed.foreach { e =>
+        failures.incrementAndGet()
+        throw e
+      }
+    }
+    def checkClientTrusted(chain: Array[X509Certificate], authType: String): Unit =
+      count(underlying.checkClientTrusted(chain, authType))
+    def checkServerTrusted(chain: Array[X509Certificate], authType: String): Unit =
+      count(underlying.checkServerTrusted(chain, authType))
+    def getAcceptedIssuers: Array[X509Certificate] = underlying.getAcceptedIssuers
+  }
+
+  private def pkix(ca: X509Certificate): X509TrustManager = {
+    val trustStore = KeyStore.getInstance("JKS")
+    trustStore.load(null, null)
+    trustStore.setCertificateEntry("ca", ca)
+    val tmf = TrustManagerFactory.getInstance("PKIX")
+    tmf.init(trustStore)
+    tmf.getTrustManagers.head.asInstanceOf[X509TrustManager]
+  }
+
+  private def context(key: KeyPair, chain: Array[X509Certificate], trustManager: TrustManager): SSLContext = {
+    val keyStore = KeyStore.getInstance("JKS")
+    keyStore.load(null, null)
+    keyStore.setKeyEntry("key", key.getPrivate, Array.emptyCharArray, chain.map(_.asInstanceOf[java.security.cert.Certificate]))
+    val kmf = KeyManagerFactory.getInstance("SunX509")
+    kmf.init(keyStore, Array.emptyCharArray)
+    val ctx = SSLContext.getInstance("TLSv1.3")
+    ctx.init(kmf.getKeyManagers, Array[TrustManager](trustManager), null)
+    ctx
+  }
+
+  private def context(key: KeyPair, chain: Array[X509Certificate], ca: X509Certificate, cached: Boolean): SSLContext =
+    context(key, chain, new FakeTrustManager(Seq(pkix(ca)), cacheValidations = cached))
+
+  private def handshake(clientCtx: SSLContext, serverCtx: SSLContext, port: Int): Unit = {
+    // a new peer port for every handshake, so no session is ever resumed
+    val client = clientCtx.createSSLEngine("mtls.oto.tools", port)
+    client.setUseClientMode(true)
+    val server = serverCtx.createSSLEngine()
+    server.setUseClientMode(false)
+    server.setNeedClientAuth(true)
+    val packetSize = Math.max(client.getSession.getPacketBufferSize, server.getSession.getPacketBufferSize)
+    val appSize    = Math.max(client.getSession.getApplicationBufferSize, server.getSession.getApplicationBufferSize)
+    val empty      = ByteBuffer.allocate(0)
+    val clientOut  = ByteBuffer.allocate(packetSize)
+    val serverOut  = ByteBuffer.allocate(packetSize)
+    val clientIn   = ByteBuffer.allocate(appSize)
+    val serverIn   = ByteBuffer.allocate(appSize)
+    def runTasks(engine: SSLEngine): Unit = {
+      var task = engine.getDelegatedTask
+      while (task != null) {
+        task.run()
+        task = engine.getDelegatedTask
+      }
+    }
+    def done(engine: SSLEngine): Boolean =
+      engine.getHandshakeStatus == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+    client.beginHandshake()
+    server.beginHandshake()
+    var rounds = 0
+    while ((!done(client) || !done(server)) && rounds < 100) {
+      client.wrap(empty, clientOut)
+      runTasks(client)
+      server.wrap(empty, serverOut)
+      runTasks(server)
+      clientOut.flip()
+      serverOut.flip()
+      client.unwrap(serverOut, clientIn)
+      runTasks(client)
+      server.unwrap(clientOut, serverIn)
+      runTasks(server)
+      clientOut.compact()
+      serverOut.compact()
+      rounds = rounds + 1
+    }
+    if (rounds >= 100) throw new RuntimeException("handshake did not complete")
+  }
+
+  def testHandshakeRate(iterations: Int = 5000): Unit = {
+    val caKey      = CertificateFixtures.keyPair()
+    val ca         = CertificateFixtures.sign("CN=mtls-bench-ca", caKey, "CN=mtls-bench-ca", caKey, ca = true)
+    val serverKey  = CertificateFixtures.keyPair()
+    val serverCert = CertificateFixtures.sign("CN=mtls.oto.tools", serverKey, "CN=mtls-bench-ca", caKey, ca = false)
+    val clientKey  = CertificateFixtures.keyPair()
+    val clientCert = CertificateFixtures.sign("CN=partner", clientKey, "CN=mtls-bench-ca", caKey, ca = false)
+
+    Seq(false, true).foreach { cached =>
+      ChainValidationCache.invalidateAll()
+      val serverCtx = context(serverKey, Array(serverCert, ca), ca, cached)
+      val clientCtx = context(clientKey, Array(clientCert, ca), ca, cached)
+      (0 until 500).foreach(i => handshake(clientCtx, serverCtx, i))
+      val start     = System.nanoTime()
+      (0 until iterations).foreach(i => handshake(clientCtx, serverCtx, 1000 + i))
+      val elapsed   = (System.nanoTime() - start).nanos
+      val rate      = iterations.toDouble / (elapsed.toMillis.toDouble / 1000.0)
+      println(
+        s"mtls handshakes ${if (cached) "with" else "without"} chain validation cache: ${iterations} in ${elapsed.toMillis} ms, ${rate.toInt} handshakes/s - ${ChainValidationCache.stats().stringify}"
+      )
+    }
+  }
+
+  def testCacheBehaviour(): Unit = {
+    val caKey      = CertificateFixtures.keyPair()
+    val ca         = CertificateFixtures.sign("CN=mtls-cache-ca", caKey, "CN=mtls-cache-ca", caKey, ca = true)
+    val otherKey   = CertificateFixtures.keyPair()
+    val otherCa    = CertificateFixtures.sign("CN=mtls-other-ca", otherKey, "CN=mtls-other-ca", otherKey, ca = true)
+    val serverKey  = CertificateFixtures.keyPair()
+    val serverCert = CertificateFixtures.sign("CN=mtls.oto.tools", serverKey, "CN=mtls-cache-ca", caKey, ca = false)
+    val clientKey  = CertificateFixtures.keyPair()
+    val clientCert = CertificateFixtures.sign("CN=partner", clientKey, "CN=mtls-cache-ca", caKey, ca = false)
+    val clientCtx  = context(clientKey, Array(clientCert, ca), ca, cached = true)
+
+    def counter(name: String): Long = (ChainValidationCache.stats() \ name).as[Long]
+    val bucket                      = ChainValidationSettings().bucket
+    // the results are cached per validity time bucket, never run the assertions across two buckets
+    while (System.currentTimeMillis() % bucket > bucket - 10000L) {
+      Thread.sleep(100)
+    }
+    ChainValidationCache.invalidateAll()
+
+    // the first handshake builds the client chain path, the second one with the same chain is a hit
+    val first     = new CountingTrustManager(pkix(ca))
+    val serverCtx = context(serverKey, Array(serverCert, ca), new FakeTrustManager(Seq(first)))
+    handshake(clientCtx, serverCtx, 1)
+    assert(first.validations.get() == 1L && first.failures.get() == 0L)
+    val hits      = counter("hits")
+    val misses    = counter("misses")
+    handshake(clientCtx, serverCtx, 2)
+    assert(first.validations.get() == 1L, "the same chain was validated twice with the same trust set")
+    // the client side validation of the server chain is a hit too
+    assert(counter("hits") == hits + 2L && counter("misses") == misses)
+
+    // a new trust manager is a new trust set version, the previous results do not apply
+    val second    = new CountingTrustManager(pkix(ca))
+    handshake(clientCtx, context(serverKey, Array(serverCert, ca), new FakeTrustManager(Seq(second))), 3)
+    assert(second.validations.get() == 1L, "a new trust set version reused a previous validation")
+    assert(counter("misses") == misses + 1L)
+
+    // the trust set built once the ca is revoked no longer contains it, the chain is rejected by every manager and
+    // that outcome is cached too: the next validations get the rejection without building the path again
+    val revoked   = new CountingTrustManager(pkix(otherCa))
+    val rejecting = new FakeTrustManager(Seq(revoked))
+    assert(rejecting.acceptedBy(client = true, Array(clientCert, ca), "UNKNOWN").isEmpty, "a revoked chain was accepted")
+    rejecting.checkClientTrusted(Array(clientCert, ca), "UNKNOWN")
+    assert(rejecting.acceptedBy(client = true, Array(clientCert, ca), "UNKNOWN").isEmpty, "the rejection was not cached")
+    assert(revoked.validations.get() == 1L && revoked.failures.get() == 1L, "a rejected chain was validated again")
+    // the accepting manager is cached as well: the chain is accepted by the second manager of this trust set
+    val other     = new CountingTrustManager(pkix(otherCa))
+    val trusted   = new CountingTrustManager(pkix(ca))
+    val accepting = new FakeTrustManager(Seq(other, trusted))
+    assert(accepting.acceptedBy(client = true, Array(clientCert, ca), "UNKNOWN").contains(1))
+    assert(accepting.acceptedBy(client = true, Array(clientCert, ca), "UNKNOWN").contains(1))
+    assert(other.validations.get() == 1L && trusted.validations.get() == 1L, "an accepted chain was validated again")
+
+    // a validation that throws is never cached
+    val version   = ChainValidationCache.nextTrustSetVersion()
+    val runs      = new AtomicLong(0L)
+    (0 until 2).foreach { _ =>
+      val result = Try(ChainValidationCache.validate(version, bucket, client = true, Array(clientCert, ca), "UNKNOWN") {
+        runs.incrementAndGet()
+        throw new java.security.cert.CertificateException("revoked")
+      })
+      assert(result.isFailure, "a failed validation was accepted")
+    }
+    assert(runs.get() == 2L, "a failed validation was cached")
+
+    // the settings of the last trust manager built apply to the shared cache
+    new FakeTrustManager(Seq(pkix(ca)), settings = ChainValidationSettings(bucket = bucket, maxSize = 42L))
+    assert(ChainValidationCache.maxSize == 42L, "the max size of the trust manager settings was not applied")
+    new FakeTrustManager(Seq(pkix(ca)))
+    println(s"chain validation cache - ${ChainValidationCache.stats().stringify}")
+  }
+}
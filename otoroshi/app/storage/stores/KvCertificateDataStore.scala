@@ -2,7 +2,14 @@ package otoroshi.storage.stores
 
 import akka.actor.Cancellable
 import otoroshi.env.Env
-import otoroshi.ssl.{Cert, CertificateDataStore, DynamicSSLEngineProvider}
+import otoroshi.ssl.{
+  Cert,
+  CertRenewalScheduler,
+  CertificateDataStore,
+  CertificateFileWatcher,
+  CertificateProjectionIndex,
+  DynamicSSLEngineProvider
+}
 import otoroshi.storage.{RedisLike, RedisLikeStore}
 import otoroshi.utils
 import otoroshi.utils.SchedulerHelper
@@ -30,20 +37,17 @@ class KvCertificateDataStore(redisCli: RedisLike, _env: Env) extends Certificate
   val includeJdkCaClientRef = new AtomicBoolean(true)
   val lastTrustedCARef      = new AtomicReference[Seq[String]](Seq.empty)
   val cancelRef             = new AtomicReference[Cancellable](null)
-  val cancelRenewRef        = new AtomicReference[Cancellable](null)
   val cancelCreateRef       = new AtomicReference[Cancellable](null)
+  val renewalScheduler      = new CertRenewalScheduler(_env)
+  val fileWatcher           = new CertificateFileWatcher(_env)
 
   def startSync(): Unit = {
     implicit val ec  = _env.otoroshiExecutionContext
     implicit val mat = _env.otoroshiMaterializer
     implicit val env = _env
     importInitialCerts(logger)
-    cancelRenewRef.set(
-      _env.otoroshiActorSystem.scheduler
-        .scheduleAtFixedRate(60.seconds, 1.hour + ((Math.random() * 10) + 1).minutes)(SchedulerHelper.runnable {
-          _env.datastores.certificatesDataStore.renewCertificates()
-        })
-    )
+    renewalScheduler.start()
+    fileWatcher.start()
     cancelCreateRef.set(
       _env.otoroshiActorSystem.scheduler.scheduleAtFixedRate(60.seconds, 2.minutes)(utils.SchedulerHelper.runnable {
         LetsEncryptHelper.createFromServices()
@@ -81,22 +85,29 @@ class KvCertificateDataStore(redisCli: RedisLike, _env: Env) extends Certificate
 
   def stopSync(): Unit = {
     Option(cancelCreateRef.get()).foreach(_.cancel())
-    Option(cancelRenewRef.get()).foreach(_.cancel())
+    renewalScheduler.stop()
+    fileWatcher.stop()
     Option(cancelRef.get()).foreach(_.cancel())
   }
 
   override def delete(id: String)(implicit ec: ExecutionContext, env: Env): Future[Boolean] =
     super.delete(id).andThen { case _ =>
+      renewalScheduler.untrack(id)
+      CertificateProjectionIndex.remove(id)
       redisCli.set(lastUpdatedKey, System.currentTimeMillis().toString)
     }
 
   override def delete(value: Cert)(implicit ec: ExecutionContext, env: Env): Future[Boolean] =
     super.delete(value).andThen { case _ =>
+      renewalScheduler.untrack(value.id)
+      CertificateProjectionIndex.remove(value.id)
       redisCli.set(lastUpdatedKey, System.currentTimeMillis().toString)
     }
 
   override def deleteAll()(implicit ec: ExecutionContext, env: Env): Future[Long] =
     super.deleteAll().andThen { case _ =>
+      renewalScheduler.sync(Seq.empty)
+      CertificateProjectionIndex.clear()
       redisCli.set(lastUpdatedKey, System.currentTimeMillis().toString)
     }
 
@@ -105,9 +116,24 @@ class KvCertificateDataStore(redisCli: RedisLike, _env: Env) extends Certificate
       env: Env
   ): Future[Boolean] =
     super.set(value, pxMilliseconds).andThen { case _ =>
+      renewalScheduler.track(value)
+      CertificateProjectionIndex.update(value)
       redisCli.set(lastUpdatedKey, System.currentTimeMillis().toString)
     }
 
+  override def setAll(values: Seq[Cert])(implicit ec: ExecutionContext, env: Env): Future[Seq[Boolean]] =
+    Future.sequence(values.map(value => super.set(value))).andThen { case _ =>
+      values.foreach(renewalScheduler.track)
+      CertificateProjectionIndex.add(values)
+    }
+
+  override def markUpdated()(implicit ec: ExecutionContext, env: Env): Future[Unit] = {
+    val now = System.currentTimeMillis().toString
+    // the caller already rebuilt the tls registry of this instance
+    lastUpdatedRef.set(now)
+    redisCli.set(lastUpdatedKey, now).map(_ => ())
+  }
+
   override def exists(id: String)(implicit ec: ExecutionContext, env: Env): Future[Boolean] =
     super.exists(id).andThen { case _ =>
       redisCli.set(lastUpdatedKey, System.currentTimeMillis().toString)
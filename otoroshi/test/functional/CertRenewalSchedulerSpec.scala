@@ -0,0 +1,18 @@
+package functional
+
+import org.scalatest.concurrent.{IntegrationPatience, ScalaFutures}
+import org.scalatest.{MustMatchers, OptionValues, WordSpec}
+import otoroshi.ssl.CertRenewalScheduler_Test
+
+class CertRenewalSchedulerSpec
+    extends WordSpec
+    with MustMatchers
+    with OptionValues
+    with ScalaFutures
+    with IntegrationPatience {
+  "CertRenewalScheduler" should {
+    "compute due dates, expiration switches, CA first order and retry delays" in {
+      CertRenewalScheduler_Test.testScheduling()
+    }
+  }
+}
@@ -0,0 +1,24 @@
+package functional
+
+import org.scalatest.concurrent.{IntegrationPatience, ScalaFutures}
+import org.scalatest.{MustMatchers, OptionValues, WordSpec}
+import otoroshi.ssl.CertificateBulkImport_Test
+
+class CertificateBulkImportSpec
+    extends WordSpec
+    with MustMatchers
+    with OptionValues
+    with ScalaFutures
+    with IntegrationPatience {
+  "CertificateBulkImport" should {
+    "pair PEM keys with their chain in both orders" in {
+      CertificateBulkImport_Test.testPemEntries()
+    }
+    "write in batches, skip duplicates and rebuild the registry once" in {
+      CertificateBulkImport_Test.testBatching()
+    }
+    "rebuild the registry with what was written when the source fails" in {
+      CertificateBulkImport_Test.testFailureMidStream()
+    }
+  }
+}
@@ -0,0 +1,24 @@
+package functional
+
+import org.scalatest.concurrent.{IntegrationPatience, ScalaFutures}
+import org.scalatest.{MustMatchers, OptionValues, WordSpec}
+import otoroshi.ssl.CertificateProjectionIndex_Test
+
+class CertificateProjectionSpec
+    extends WordSpec
+    with MustMatchers
+    with OptionValues
+    with ScalaFutures
+    with IntegrationPatience {
+  "CertificateProjectionIndex" should {
+    "page through filtered certificates projections with a cursor" in {
+      CertificateProjectionIndex_Test.testPaging()
+    }
+    "read the validity of unenriched certificates from their leaf" in {
+      CertificateProjectionIndex_Test.testLeafValidity()
+    }
+    "skip the certificates that did not change when synced again" in {
+      CertificateProjectionIndex_Test.testResync()
+    }
+  }
+}
@@ -0,0 +1,31 @@
+package functional
+
+import org.scalatest.concurrent.{IntegrationPatience, ScalaFutures}
+import org.scalatest.{MustMatchers, OptionValues, WordSpec}
+import otoroshi.ssl.CertificateStore_Test
+
+class CertificateStoreSpec
+    extends WordSpec
+    with MustMatchers
+    with OptionValues
+    with ScalaFutures
+    with IntegrationPatience {
+  "CertificateStore" should {
+    "share the parsed material of every copy of a certificate" in {
+      CertificateStore_Test.testSharing()
+    }
+  }
+}
+
+//class CertificateStoreHeapSpec
+//    extends WordSpec
+//    with MustMatchers
+//    with OptionValues
+//    with ScalaFutures
+//    with IntegrationPatience {
+//  "CertificateStore" should {
+//    "use at most half of the heap per certificate of per instance parsing" in {
+//      CertificateStore_Test.testHeap()
+//    }
+//  }
+//}
@@ -0,0 +1,21 @@
+package functional
+
+import org.scalatest.concurrent.{IntegrationPatience, ScalaFutures}
+import org.scalatest.{MustMatchers, OptionValues, WordSpec}
+import otoroshi.ssl.ChainValidationCache_Test
+
+class ChainValidationCacheSpec
+    extends WordSpec
+    with MustMatchers
+    with OptionValues
+    with ScalaFutures
+    with IntegrationPatience {
+  "ChainValidationCache" should {
+    "skip the validation of known chains only within the same trust set" in {
+      ChainValidationCache_Test.testCacheBehaviour()
+    }
+    "speed up mtls handshakes of returning clients" in {
+      ChainValidationCache_Test.testHandshakeRate()
+    }
+  }
+}
@@ -0,0 +1,21 @@
+package functional
+
+import org.scalatest.concurrent.{IntegrationPatience, ScalaFutures}
+import org.scalatest.{MustMatchers, OptionValues, WordSpec}
+import otoroshi.models.AlgoSettings_Test
+
+class JwtAlgorithmCacheSpec
+    extends WordSpec
+    with MustMatchers
+    with OptionValues
+    with ScalaFutures
+    with IntegrationPatience {
+  "AlgoSettings" should {
+    "evict the algorithms of updated verifiers and never reuse them for another key" in {
+      AlgoSettings_Test.testInvalidation()
+    }
+    "speed up RS and ES token verification" in {
+      AlgoSettings_Test.testVerificationThroughput()
+    }
+  }
+}
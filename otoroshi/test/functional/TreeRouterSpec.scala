@@ -56,6 +56,19 @@ class NgTreeRouterWildcardSpec
   }
 }
 
+class NgTreeRouterRoutingHintSpec
+    extends WordSpec
+    with MustMatchers
+    with OptionValues
+    with ScalaFutures
+    with IntegrationPatience {
+  "NgTreeRouter" should {
+    "only match the path when the domain is resolved from the sni" in {
+      NgTreeRouter_Test.testRoutingHint()
+    }
+  }
+}
+
 class NgTreeRouterWithEnvSpec(configurationSpec: => Configuration) extends OtoroshiSpec {
 
   override def getTestConfiguration(configuration: Configuration) = {
@@ -0,0 +1,21 @@
+package functional
+
+import org.scalatest.concurrent.{IntegrationPatience, ScalaFutures}
+import org.scalatest.{MustMatchers, OptionValues, WordSpec}
+import otoroshi.ssl.WatchedCertificates_Test
+
+class WatchedCertificatesSpec
+    extends WordSpec
+    with MustMatchers
+    with OptionValues
+    with ScalaFutures
+    with IntegrationPatience {
+  "WatchedCertificates" should {
+    "reject mismatching keys and swap rotated certificates in place" in {
+      WatchedCertificates_Test.testReload()
+    }
+    "reload rotated files once and keep the previous certificate when they are broken" in {
+      WatchedCertificates_Test.testFileWatcher()
+    }
+  }
+}